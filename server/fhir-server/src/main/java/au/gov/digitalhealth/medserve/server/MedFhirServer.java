@@ -12,6 +12,9 @@ import ca.uhn.fhir.rest.api.EncodingEnum;
 import org.springframework.web.cors.CorsConfiguration;
 
 import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.index.QueryCache;
+import au.gov.digitalhealth.medserve.server.interceptor.RawResponseInterceptor;
+import au.gov.digitalhealth.medserve.server.interceptor.ReadCacheInterceptor;
 import au.gov.digitalhealth.medserve.server.resourceprovider.MedicationResourceProvider;
 import au.gov.digitalhealth.medserve.server.resourceprovider.OrganizationResourceProvider;
 import au.gov.digitalhealth.medserve.server.resourceprovider.SubstanceResourceProvider;
@@ -27,6 +30,18 @@ public class MedFhirServer extends RestfulServer {
 
     private String baseUrl = System.getenv("MEDSERVE_FHIR_BASE");
 
+    private boolean rawResponses = !"false".equalsIgnoreCase(System.getenv("MEDSERVE_RAW_RESPONSES"));
+
+    private long queryCacheSize = getLongSetting("MEDSERVE_QUERY_CACHE_SIZE", 2_000_000);
+
+    private int queryCacheDepth = (int) getLongSetting("MEDSERVE_QUERY_CACHE_DEPTH", 100);
+
+    private long readCacheSize = getLongSetting("MEDSERVE_READ_CACHE_SIZE", 64L * 1024 * 1024);
+
+    private Index index;
+
+    private ReadCacheInterceptor readCache;
+
     private static FifoMemoryPagingProvider pp = new FifoMemoryPagingProvider(100);
 
     /**
@@ -42,9 +57,11 @@ public class MedFhirServer extends RestfulServer {
          * setResourceProviders()
          */
         List<IResourceProvider> resourceProviders = new ArrayList<IResourceProvider>();
-        Index index;
+        // Cache search hits, at most `MEDSERVE_QUERY_CACHE_SIZE` doc ids in total and `MEDSERVE_QUERY_CACHE_DEPTH`
+        // for each search. Set the size to 0 to disable.
+        QueryCache queryCache = queryCacheSize > 0 ? new QueryCache(queryCacheSize, queryCacheDepth) : null;
         try {
-            index = new Index();
+            index = new Index(rawResponses, queryCache);
         } catch (IOException e) {
             throw new ServletException("Could not create index for " + Index.INDEX_LOCATION);
         }
@@ -76,10 +93,37 @@ public class MedFhirServer extends RestfulServer {
         CorsInterceptor interceptor = new CorsInterceptor(config);
         registerInterceptor(interceptor);
 
+        // Cache encoded responses to reads by id, at most `MEDSERVE_READ_CACHE_SIZE` bytes. Set to 0 to disable.
+        if (readCacheSize > 0) {
+            readCache = new ReadCacheInterceptor(readCacheSize);
+            registerInterceptor(readCache);
+        }
+
+        // Serve JSON stored in the index without parsing it, set `MEDSERVE_RAW_RESPONSES` to false to disable.
+        if (rawResponses) {
+            registerInterceptor(new RawResponseInterceptor());
+        }
+
         // Set base FHIR endpoint, based upon the `MEDSERVE_FHIR_BASE` configuration variable.
         if (baseUrl != null && baseUrl != "") {
             log("Setting server FHIR base to " + baseUrl);
             setServerAddressStrategy(new HardcodedServerAddressStrategy(baseUrl));
         }
     }
+
+    @Override
+    public void destroy() {
+        if (index != null && index.getQueryCache() != null) {
+            log("Search " + index.getQueryCache());
+        }
+        if (readCache != null) {
+            log(readCache.toString());
+        }
+        super.destroy();
+    }
+
+    private static long getLongSetting(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
 }
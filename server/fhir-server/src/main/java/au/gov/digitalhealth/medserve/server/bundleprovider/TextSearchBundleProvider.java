@@ -1,7 +1,6 @@
 package au.gov.digitalhealth.medserve.server.bundleprovider;
 
 import java.io.IOException;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -11,6 +10,7 @@ import org.hl7.fhir.instance.model.api.IPrimitiveType;
 
 import au.gov.digitalhealth.medserve.server.Util;
 import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.index.SearchSession;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.DateAndListParam;
@@ -21,27 +21,15 @@ import ca.uhn.fhir.rest.param.TokenAndListParam;
 public class TextSearchBundleProvider implements IBundleProvider {
     private InstantDt searchTime;
     private Integer pageSize;
-    private StringAndListParam text;
-    private Index index;
-    private Class<? extends BaseResource> clazz;
-    private int size;
-    private StringOrListParam status;
-    private DateAndListParam lastModified;
-    private TokenAndListParam code;
+    private SearchSession session;
 
     public TextSearchBundleProvider(Class<? extends BaseResource> clazz, Index index, TokenAndListParam code,
             StringAndListParam text, StringOrListParam status, DateAndListParam lastModified, Integer pageSize)
             throws IOException {
         searchTime = InstantDt.withCurrentTime();
-        this.clazz = clazz;
-        this.index = index;
-        this.text = text;
-        this.status = status;
-        this.lastModified = lastModified;
         this.pageSize = Util.getCount(pageSize);
-        this.code = code;
-        
-        this.size = index.getResourcesByTextSize(clazz, code, text, status, lastModified);
+
+        this.session = index.searchResourcesByText(clazz, code, text, status, lastModified, this.pageSize);
     }
 
     @Override
@@ -51,10 +39,7 @@ public class TextSearchBundleProvider implements IBundleProvider {
 
     @Override
     public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
-        if (theFromIndex >= size) {
-            return Collections.emptyList();
-        }
-        return index.getResourcesByText(clazz, code, text, status, lastModified, theFromIndex, theToIndex);
+        return session.getResources(theFromIndex, theToIndex);
     }
 
     @Override
@@ -69,7 +54,7 @@ public class TextSearchBundleProvider implements IBundleProvider {
 
     @Override
     public Integer size() {
-        return size;
+        return session.size();
     }
 
 }
@@ -1,6 +1,8 @@
 package au.gov.digitalhealth.medserve.server.index;
 
 import org.apache.lucene.document.Document;
+import org.hl7.fhir.dstu3.model.Base;
+import org.hl7.fhir.dstu3.model.BaseResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
@@ -10,20 +12,60 @@ import ca.uhn.fhir.parser.IParser;
 
 public final class DocumentReader {
 
+    /**
+     * User data key under which a stub resource carries the JSON stored in the index for it.
+     */
+    public static final String RAW_JSON = "medserve.rawJson";
+
     private static IParser fhirParser = FhirContext.forDstu3().newJsonParser();
 
     private DocumentReader() {
         throw new AssertionError("Static method helper class not to be constructed!");
     }
-    
+
     public static <T extends IBaseResource> T getResourceFromDocument(Document doc, Class<T> clazz) {
         try {
-            return fhirParser
-                .parseResource(clazz,
-                    doc.getField(FieldNames.JSON).stringValue());
+            return parse(clazz, doc.getField(FieldNames.JSON).stringValue());
         } catch (DataFormatException e) {
             throw new RuntimeException("Failed reading document " + doc, e);
         }
     }
 
+    /**
+     * Creates an empty resource carrying only its id and the stored JSON for the document, so the JSON can be
+     * written straight to a response without being parsed. Use {@link #inflateStub(IBaseResource)} to get the
+     * full resource if an object model is needed after all.
+     */
+    public static <T extends BaseResource> T getStubFromDocument(Document doc, Class<T> clazz) {
+        T stub;
+        try {
+            stub = clazz.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Cannot create " + clazz.getSimpleName() + " for document " + doc, e);
+        }
+        stub.setId(doc.get(FieldNames.ID));
+        stub.setUserData(RAW_JSON, doc.get(FieldNames.JSON));
+        return stub;
+    }
+
+    public static boolean isStub(IBaseResource resource) {
+        return resource instanceof Base && ((Base) resource).hasUserData(RAW_JSON);
+    }
+
+    public static String getJsonFromStub(IBaseResource stub) {
+        return (String) ((Base) stub).getUserData(RAW_JSON);
+    }
+
+    public static IBaseResource inflateStub(IBaseResource stub) {
+        try {
+            return parse(stub.getClass(), getJsonFromStub(stub));
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Failed reading stored JSON for " + stub.getIdElement(), e);
+        }
+    }
+
+    private static <T extends IBaseResource> T parse(Class<T> clazz, String json) {
+        return fhirParser.parseResource(clazz, json);
+    }
+
 }
@@ -2,9 +2,9 @@ package au.gov.digitalhealth.medserve.server.index;
 
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.logging.Logger;
 
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
@@ -17,9 +17,9 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.MMapDirectory;
 import org.hl7.fhir.dstu3.model.BaseResource;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
+import au.gov.digitalhealth.medserve.server.indexbuilder.DocIdTable;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.ResourceTypes;
 import ca.uhn.fhir.rest.param.DateAndListParam;
@@ -31,17 +31,50 @@ import ca.uhn.fhir.rest.param.TokenParam;
 
 public class Index {
 
+    private static final Logger logger = Logger.getLogger(Index.class.getCanonicalName());
+
     public static final String INDEX_LOCATION = System.getProperty("index.path", "/index");
     private IndexReader reader;
     private IndexSearcher searcher;
+    private boolean rawResponses;
+    private QueryCache queryCache;
+    private DocIdTable docIds;
 
     public Index() throws IOException {
-        this.reader = DirectoryReader.open(new MMapDirectory(Paths.get(INDEX_LOCATION)));
+        this(false, null);
+    }
+
+    /**
+     * @param rawResponses if true resources are returned as stubs carrying their stored JSON rather than being
+     *            parsed, see {@link DocumentReader#getStubFromDocument(Document, Class)}
+     * @param queryCache cache for search hits, or null to run every search against the index
+     */
+    public Index(boolean rawResponses, QueryCache queryCache) throws IOException {
+        DirectoryReader directoryReader = DirectoryReader.open(new MMapDirectory(Paths.get(INDEX_LOCATION)));
+        this.reader = directoryReader;
         this.searcher = new IndexSearcher(reader);
+        this.rawResponses = rawResponses;
+        this.queryCache = queryCache;
+        this.docIds = DocIdTable.load(Paths.get(INDEX_LOCATION), directoryReader);
+        if (docIds == null) {
+            logger.warning("No current " + DocIdTable.FILE_NAME + " in " + INDEX_LOCATION + ", building doc id table");
+            docIds = DocIdTable.build(directoryReader);
+        }
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
     }
 
     public <T extends BaseResource> T getResourceById(Class<T> clazz, String id) throws IOException {
         String resourceType = clazz.getSimpleName().replace("Extended", "").toLowerCase();
+        int doc = docIds.get(resourceType, id);
+        if (doc == DocIdTable.NOT_FOUND) {
+            return null;
+        } else if (doc != DocIdTable.DUPLICATE) {
+            return readResource(doc, clazz);
+        }
+
         Builder builder = new BooleanQuery.Builder()
             .add(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, resourceType)), Occur.FILTER)
             .add(new TermQuery(new Term(FieldNames.ID, id)), Occur.FILTER);
@@ -49,18 +82,9 @@ public class Index {
         return getSingleResource(clazz, builder.build(), id);
     }
 
-    public int getResourcesByCodeSize(Class<? extends BaseResource> clazz, TokenParam code) throws IOException {
-        Query query = getResourcesByCodeQuery(clazz, code);
-        return searcher.count(query);
-    }
-
-    public List<IBaseResource> getResourcesByCode(Class<? extends BaseResource> clazz, TokenParam code,
-            int theFromIndex,
-            int theToIndex) {
-
-        Query query = getResourcesByCodeQuery(clazz, code);
-
-        return getResources(clazz, theFromIndex, theToIndex, query);
+    public SearchSession searchResourcesByCode(Class<? extends BaseResource> clazz, TokenParam code, int pageSize)
+            throws IOException {
+        return new SearchSession(this, searcher, queryCache, getResourcesByCodeQuery(clazz, code), clazz, pageSize);
     }
 
     private BooleanQuery getResourcesByCodeQuery(Class<? extends BaseResource> clazz, TokenParam code) {
@@ -73,46 +97,25 @@ public class Index {
         return builder.build();
     }
 
-    public int getResourcesByTextSize(Class<? extends BaseResource> clazz, TokenAndListParam code,
-            StringAndListParam text, StringOrListParam status, DateAndListParam lastModified) throws IOException {
-        return searcher.count(QueryBuilder.createTextSearchBuilder(clazz, code, text, status, lastModified).build());
-    }
-
-    public List<IBaseResource> getResourcesByText(Class<? extends BaseResource> clazz, TokenAndListParam code,
-            StringAndListParam text,
-            StringOrListParam status, DateAndListParam lastModified, int theFromIndex, int theToIndex) {
-        return getResources(clazz, theFromIndex, theToIndex,
-            QueryBuilder.createTextSearchBuilder(clazz, code, text, status, lastModified).build());
-    }
-
-    public int getMedicationsByParametersSize(Class<ExtendedMedication> clazz, TokenAndListParam code,
-            StringAndListParam text,
-            TokenAndListParam parent, TokenAndListParam ancestor, StringOrListParam medicationResourceType,
-            TokenAndListParam form, TokenAndListParam container, TokenAndListParam ingredient,
-            TokenAndListParam packageItem, TokenAndListParam brand, String isBrand, TokenAndListParam manufacturer,
-            TokenAndListParam subsidyCode, StringOrListParam status, DateAndListParam lastModified,
-            NumberAndListParam ingredientCount)
+    public SearchSession searchResourcesByText(Class<? extends BaseResource> clazz, TokenAndListParam code,
+            StringAndListParam text, StringOrListParam status, DateAndListParam lastModified, int pageSize)
             throws IOException {
-        Query query = getMedicationsByParametersQuery(clazz, code, text, parent, ancestor, medicationResourceType, form,
-            container, ingredient, packageItem, brand, isBrand, manufacturer, subsidyCode, status, lastModified,
-            ingredientCount);
-        return searcher.count(query);
+        return new SearchSession(this, searcher, queryCache,
+            QueryBuilder.createTextSearchBuilder(clazz, code, text, status, lastModified).build(), clazz, pageSize);
     }
 
-    public List<IBaseResource> getMedicationsByParameters(Class<ExtendedMedication> clazz, TokenAndListParam code,
+    public SearchSession searchMedicationsByParameters(Class<ExtendedMedication> clazz, TokenAndListParam code,
             StringAndListParam text,
             TokenAndListParam parent, TokenAndListParam ancestor, StringOrListParam medicationResourceType,
             TokenAndListParam form, TokenAndListParam container, TokenAndListParam ingredient,
             TokenAndListParam packageItem, TokenAndListParam brand, String isBrand, TokenAndListParam manufacturer,
             TokenAndListParam subsidyCode, StringOrListParam status, DateAndListParam lastModified,
-            NumberAndListParam ingredientCount, int theFromIndex,
-            int theToIndex) {
-
+            NumberAndListParam ingredientCount, int pageSize)
+            throws IOException {
         Query query = getMedicationsByParametersQuery(clazz, code, text, parent, ancestor, medicationResourceType, form,
             container, ingredient, packageItem, brand, isBrand, manufacturer, subsidyCode, status, lastModified,
             ingredientCount);
-
-        return getResources(clazz, theFromIndex, theToIndex, query);
+        return new SearchSession(this, searcher, queryCache, query, clazz, pageSize);
     }
 
     private BooleanQuery getMedicationsByParametersQuery(Class<ExtendedMedication> clazz, TokenAndListParam code,
@@ -159,24 +162,6 @@ public class Index {
         return builder.build();
     }
 
-    private List<IBaseResource> getResources(Class<? extends IBaseResource> clazz, int theFromIndex, int theToIndex,
-            Query query) {
-        List<IBaseResource> result = new ArrayList<>();
-        TopDocs docs;
-        try {
-            docs = searcher.search(query, theToIndex);
-
-            for (int i = theFromIndex; i < theToIndex; i++) {
-
-                result.add(DocumentReader.getResourceFromDocument(reader.document(docs.scoreDocs[i].doc), clazz));
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed searching index with query '" + query + "'", e);
-        }
-
-        return result;
-    }
-
     private <T extends BaseResource> T getSingleResource(Class<T> clazz, Query query, String id) throws IOException {
         TopDocs docs;
         try {
@@ -192,6 +177,14 @@ public class Index {
         if (docs.totalHits == 0) {
             return null;
         }
-        return DocumentReader.getResourceFromDocument(reader.document(docs.scoreDocs[0].doc), clazz);
+        return readResource(docs.scoreDocs[0].doc, clazz);
+    }
+
+    <T extends BaseResource> T readResource(int doc, Class<T> clazz) throws IOException {
+        Document document = reader.document(doc);
+        if (rawResponses) {
+            return DocumentReader.getStubFromDocument(document, clazz);
+        }
+        return DocumentReader.getResourceFromDocument(document, clazz);
     }
 }
@@ -0,0 +1,135 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Least recently used cache of search hits, which is safe because the index is never modified while the server is
+ * running. Entries are keyed on the Lucene {@link Query} built from the search parameters, {@link Query#equals(Object)}
+ * ignores the order of the clauses in a BooleanQuery so the same parameters in a different order share an entry.
+ * <p>
+ * The cache is bounded by the total number of doc ids it holds rather than the number of entries, and each entry
+ * holds at most {@link #getDepth()} hits - pages past that are searched for again.
+ */
+public class QueryCache {
+
+    /**
+     * Rough cost of an entry's key and bookkeeping, counted in doc ids, so lots of empty results can't fill memory
+     */
+    private static final int ENTRY_OVERHEAD = 16;
+
+    private final long maxDocs;
+    private final int depth;
+    private long cachedDocs;
+    private final LinkedHashMap<Query, Hits> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxDocs total number of doc ids the cache may hold across all entries
+     * @param depth maximum number of hits cached for each query
+     */
+    public QueryCache(long maxDocs, int depth) {
+        this.maxDocs = maxDocs;
+        this.depth = depth;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getCachedDocs() {
+        return cachedDocs;
+    }
+
+    Hits get(Query query) {
+        Hits hits;
+        synchronized (this) {
+            hits = entries.get(query);
+        }
+        (hits == null ? missCount : hitCount).incrementAndGet();
+        return hits;
+    }
+
+    void put(Query query, Hits hits) {
+        long weight = hits.weight();
+        if (weight > maxDocs) {
+            return;
+        }
+        synchronized (this) {
+            Hits previous = entries.put(query, hits);
+            if (previous != null) {
+                cachedDocs -= previous.weight();
+            }
+            cachedDocs += weight;
+
+            Iterator<Entry<Query, Hits>> iterator = entries.entrySet().iterator();
+            while (cachedDocs > maxDocs && iterator.hasNext()) {
+                cachedDocs -= iterator.next().getValue().weight();
+                iterator.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueryCache [hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+                + getEvictionCount() + ", entries=" + getEntryCount() + ", cachedDocs=" + getCachedDocs() + "]";
+    }
+
+    /**
+     * The total hit count of a search and the doc ids and scores of its leading hits
+     */
+    static final class Hits {
+        final int totalHits;
+        final int[] docs;
+        final float[] scores;
+
+        Hits(TopDocs topDocs) {
+            this.totalHits = (int) topDocs.totalHits;
+            this.docs = new int[topDocs.scoreDocs.length];
+            this.scores = new float[topDocs.scoreDocs.length];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = topDocs.scoreDocs[i].doc;
+                scores[i] = topDocs.scoreDocs[i].score;
+            }
+        }
+
+        int length() {
+            return docs.length;
+        }
+
+        ScoreDoc scoreDoc(int i) {
+            return new ScoreDoc(docs[i], scores[i]);
+        }
+
+        private long weight() {
+            return docs.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package au.gov.digitalhealth.medserve.server.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.hl7.fhir.dstu3.model.BaseResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * The results of a single search of the {@link Index}. The query is run once when the session is created to get
+ * both the total hit count and the first page, after that each page is collected with
+ * {@link IndexSearcher#searchAfter(ScoreDoc, Query, int)} from the last hit of the page before it so paging through
+ * the results doesn't cost more the deeper it goes.
+ * <p>
+ * If the {@link Index} has a {@link QueryCache} the leading hits are collected to the cache's depth instead and
+ * cached, so repeating the search and turning pages within those hits doesn't touch Lucene at all.
+ */
+public class SearchSession {
+
+    private Index index;
+    private IndexSearcher searcher;
+    private Query query;
+    private Class<? extends BaseResource> clazz;
+    private QueryCache.Hits hits;
+    /**
+     * Last hit before each page offset served so far, keyed by the offset of the page
+     */
+    private Map<Integer, ScoreDoc> cursors = new ConcurrentHashMap<>();
+
+    SearchSession(Index index, IndexSearcher searcher, QueryCache cache, Query query,
+            Class<? extends BaseResource> clazz, int pageSize) throws IOException {
+        this.index = index;
+        this.searcher = searcher;
+        this.query = query;
+        this.clazz = clazz;
+
+        if (cache == null) {
+            this.hits = new QueryCache.Hits(searcher.search(query, pageSize));
+        } else {
+            this.hits = cache.get(query);
+            if (hits == null) {
+                this.hits = new QueryCache.Hits(searcher.search(query, Math.max(pageSize, cache.getDepth())));
+                cache.put(query, hits);
+            }
+        }
+        if (hits.length() > 0) {
+            cursors.put(hits.length(), hits.scoreDoc(hits.length() - 1));
+        }
+    }
+
+    public int size() {
+        return hits.totalHits;
+    }
+
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        int toIndex = Math.min(theToIndex, hits.totalHits);
+        if (theFromIndex >= toIndex) {
+            return Collections.emptyList();
+        }
+
+        List<IBaseResource> result = new ArrayList<>();
+        try {
+            if (toIndex <= hits.length()) {
+                for (int i = theFromIndex; i < toIndex; i++) {
+                    result.add(index.readResource(hits.docs[i], clazz));
+                }
+                return result;
+            }
+
+            ScoreDoc[] page = getPage(theFromIndex, toIndex);
+            for (ScoreDoc doc : page) {
+                result.add(index.readResource(doc.doc, clazz));
+            }
+            if (page.length > 0) {
+                cursors.put(theFromIndex + page.length, page[page.length - 1]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed searching index with query '" + query + "'", e);
+        }
+
+        return result;
+    }
+
+    private ScoreDoc[] getPage(int theFromIndex, int theToIndex) throws IOException {
+        ScoreDoc cursor = cursors.get(theFromIndex);
+        if (cursor != null) {
+            return searcher.searchAfter(cursor, query, theToIndex - theFromIndex).scoreDocs;
+        }
+
+        // no page has ended at this offset yet, so collect everything up to the end of the requested page
+        ScoreDoc[] docs = searcher.search(query, theToIndex).scoreDocs;
+        return Arrays.copyOfRange(docs, Math.min(theFromIndex, docs.length), docs.length);
+    }
+}
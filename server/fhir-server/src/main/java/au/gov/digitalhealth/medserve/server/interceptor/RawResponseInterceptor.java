@@ -0,0 +1,160 @@
+package au.gov.digitalhealth.medserve.server.interceptor;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Basic;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import au.gov.digitalhealth.medserve.server.index.DocumentReader;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.util.DateUtils;
+
+/**
+ * Writes the JSON stored in the index straight to the response for resources returned as stubs by an
+ * {@link au.gov.digitalhealth.medserve.server.index.Index} in raw response mode, either on their own or as Bundle
+ * entries. Requests which need an object model to encode the response - XML, pretty printing, _elements or
+ * _summary - have their stubs parsed and are then handled by HAPI as usual. Responses are gzipped, as HAPI does, for
+ * clients that accept it.
+ */
+public class RawResponseInterceptor extends InterceptorAdapter {
+
+    private static final String PLACEHOLDER_ID_PREFIX = "medserve-raw-";
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+            throws AuthenticationException {
+        IBaseResource resource = theResponseDetails.getResponseResource();
+        ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+        boolean raw = isRawResponsePossible(theRequestDetails, encoding);
+
+        try {
+            if (DocumentReader.isStub(resource)) {
+                if (!raw) {
+                    theResponseDetails.setResponseResource(DocumentReader.inflateStub(resource));
+                    return true;
+                }
+                theServletResponse.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                    theRequestDetails.getFhirServerBase() + "/" + theRequestDetails.getResourceName() + "/"
+                            + resource.getIdElement().getIdPart());
+                writeResponse(theRequestDetails, theResponseDetails, theServletResponse, encoding,
+                    DocumentReader.getJsonFromStub(resource));
+                return false;
+            } else if (resource instanceof Bundle && hasStubEntries((Bundle) resource)) {
+                Bundle bundle = (Bundle) resource;
+                if (!raw) {
+                    for (BundleEntryComponent entry : bundle.getEntry()) {
+                        if (DocumentReader.isStub(entry.getResource())) {
+                            entry.setResource((Resource) DocumentReader.inflateStub(entry.getResource()));
+                        }
+                    }
+                    return true;
+                }
+                IPrimitiveType<Date> lastUpdated = RestfulServerUtils.extractLastUpdatedFromResource(bundle);
+                if (lastUpdated != null && lastUpdated.getValue() != null) {
+                    theServletResponse.setHeader(Constants.HEADER_LAST_MODIFIED,
+                        DateUtils.formatDate(lastUpdated.getValue()));
+                }
+                writeResponse(theRequestDetails, theResponseDetails, theServletResponse, encoding,
+                    encodeBundle(theRequestDetails, bundle));
+                return false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing response for " + theRequestDetails.getCompleteUrl(), e);
+        }
+
+        return true;
+    }
+
+    static boolean isRawResponsePossible(RequestDetails theRequestDetails, ResponseEncoding encoding) {
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+        return encoding.getEncoding().equals(EncodingEnum.JSON)
+                && !RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails)
+                && !parameters.containsKey(Constants.PARAM_ELEMENTS)
+                && !parameters.containsKey(Constants.PARAM_SUMMARY);
+    }
+
+    private boolean hasStubEntries(Bundle bundle) {
+        return bundle.getEntry().stream().anyMatch(e -> DocumentReader.isStub(e.getResource()));
+    }
+
+    /**
+     * Encodes the Bundle with a small placeholder resource standing in for each stub entry, then splices each
+     * stub's stored JSON into the output in place of its placeholder.
+     */
+    private String encodeBundle(RequestDetails theRequestDetails, Bundle bundle) {
+        List<String> json = new ArrayList<>();
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+            if (DocumentReader.isStub(entry.getResource())) {
+                Basic placeholder = new Basic();
+                placeholder.setId(PLACEHOLDER_ID_PREFIX + json.size());
+                json.add(DocumentReader.getJsonFromStub(entry.getResource()));
+                entry.setResource(placeholder);
+            }
+        }
+
+        FhirContext context = theRequestDetails.getFhirContext();
+        String encoded = RestfulServerUtils.getNewParser(context, context.getVersion().getVersion(), theRequestDetails)
+            .encodeResourceToString(bundle);
+
+        StringBuilder result = new StringBuilder(encoded.length() + json.stream().mapToInt(String::length).sum());
+        int position = 0;
+        for (int i = 0; i < json.size(); i++) {
+            String placeholder = "{\"resourceType\":\"Basic\",\"id\":\"" + PLACEHOLDER_ID_PREFIX + i + "\"}";
+            int start = encoded.indexOf(placeholder, position);
+            if (start < 0) {
+                throw new RuntimeException("Could not find placeholder " + placeholder + " in encoded bundle");
+            }
+            result.append(encoded, position, start).append(json.get(i));
+            position = start + placeholder.length();
+        }
+        result.append(encoded, position, encoded.length());
+
+        return result.toString();
+    }
+
+    private void writeResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+            HttpServletResponse theServletResponse, ResponseEncoding encoding, String json) throws IOException {
+        if (theRequestDetails.getServer() instanceof RestfulServer) {
+            ((RestfulServer) theRequestDetails.getServer()).addHeadersToResponse(theServletResponse);
+        }
+        theServletResponse.setStatus(theResponseDetails.getResponseCode());
+        theServletResponse.setContentType(encoding.getResourceContentType());
+        theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        if (theRequestDetails.isRespondGzip()) {
+            theServletResponse.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(theServletResponse.getOutputStream()),
+                StandardCharsets.UTF_8)) {
+                writer.write(json);
+            }
+        } else {
+            try (Writer writer = theServletResponse.getWriter()) {
+                writer.write(json);
+            }
+        }
+    }
+}
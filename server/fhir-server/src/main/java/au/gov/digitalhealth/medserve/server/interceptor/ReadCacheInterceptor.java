@@ -0,0 +1,220 @@
+package au.gov.digitalhealth.medserve.server.interceptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import au.gov.digitalhealth.medserve.server.index.DocumentReader;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+/**
+ * Least recently used cache of the encoded responses to reads by id, keyed on resource type, id and everything about
+ * the request that changes how the resource is encoded. Reads found in the cache are written straight back without
+ * going to the resource providers, the index is never modified while the server is running so entries never go
+ * stale. Responses for clients that accept gzip are cached compressed, under their own key.
+ * <p>
+ * Register this before {@link RawResponseInterceptor}, reads of stub resources that can be written raw are cached
+ * from their stored JSON.
+ */
+public class ReadCacheInterceptor extends InterceptorAdapter {
+
+    private final long maxBytes;
+    private long cachedBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param maxBytes total size of the encoded responses the cache may hold
+     */
+    public ReadCacheInterceptor(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+            HttpServletResponse theResponse) throws AuthenticationException {
+        if (!isCacheableRead(theRequestDetails)) {
+            return true;
+        }
+
+        ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+        byte[] body;
+        synchronized (this) {
+            body = entries.get(getKey(theRequestDetails, encoding));
+        }
+        if (body == null) {
+            missCount.incrementAndGet();
+            return true;
+        }
+
+        hitCount.incrementAndGet();
+        try {
+            writeResponse(theRequestDetails, theResponse, encoding, body);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing response for " + theRequestDetails.getCompleteUrl(), e);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails,
+            HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+            throws AuthenticationException {
+        IBaseResource resource = theResponseDetails.getResponseResource();
+        if (!isCacheableRead(theRequestDetails) || resource == null || !isUnversioned(resource)) {
+            return true;
+        }
+
+        ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+        String encoded;
+        if (DocumentReader.isStub(resource) && RawResponseInterceptor.isRawResponsePossible(theRequestDetails,
+            encoding)) {
+            encoded = DocumentReader.getJsonFromStub(resource);
+        } else {
+            if (DocumentReader.isStub(resource)) {
+                resource = DocumentReader.inflateStub(resource);
+            }
+            FhirContext context = theRequestDetails.getFhirContext();
+            encoded = RestfulServerUtils
+                .getNewParser(context, context.getVersion().getVersion(), theRequestDetails)
+                .encodeResourceToString(resource);
+        }
+
+        try {
+            byte[] body = encoded.getBytes(StandardCharsets.UTF_8);
+            if (theRequestDetails.isRespondGzip()) {
+                body = gzip(body);
+            }
+            put(getKey(theRequestDetails, encoding), body);
+            writeResponse(theRequestDetails, theServletResponse, encoding, body);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed writing response for " + theRequestDetails.getCompleteUrl(), e);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadCache [hits=" + getHitCount() + ", misses=" + getMissCount() + ", cachedBytes="
+                + getCachedBytes() + "]";
+    }
+
+    private synchronized void put(String key, byte[] body) {
+        if (body.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, body);
+        if (previous != null) {
+            cachedBytes -= previous.length;
+        }
+        cachedBytes += body.length;
+
+        Iterator<Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    private boolean isCacheableRead(RequestDetails theRequestDetails) {
+        return RestOperationTypeEnum.READ.equals(theRequestDetails.getRestOperationType())
+                && RequestTypeEnum.GET.equals(theRequestDetails.getRequestType())
+                && theRequestDetails.getId() != null
+                && !theRequestDetails.getId().hasVersionIdPart();
+    }
+
+    /**
+     * Responses to resources with a version or last updated time get ETag and Last-Modified headers from HAPI, leave
+     * those to HAPI rather than caching them
+     */
+    private boolean isUnversioned(IBaseResource resource) {
+        return DocumentReader.isStub(resource)
+                || resource instanceof Resource && !((Resource) resource).getMeta().hasVersionId()
+                        && !((Resource) resource).getMeta().hasLastUpdated();
+    }
+
+    private String getKey(RequestDetails theRequestDetails, ResponseEncoding encoding) {
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+        StringBuilder key = new StringBuilder()
+            .append(theRequestDetails.getResourceName())
+            .append('/')
+            .append(theRequestDetails.getId().getIdPart())
+            .append('|')
+            .append(encoding.getEncoding())
+            .append('|')
+            .append(RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails));
+        for (String parameter : new String[] { Constants.PARAM_ELEMENTS, Constants.PARAM_SUMMARY }) {
+            if (parameters.containsKey(parameter)) {
+                key.append('|').append(parameter).append('=').append(String.join(",", parameters.get(parameter)));
+            }
+        }
+        if (theRequestDetails.isRespondGzip()) {
+            key.append('|').append(Constants.ENCODING_GZIP);
+        }
+        return key.toString();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(body);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeResponse(RequestDetails theRequestDetails, HttpServletResponse theServletResponse,
+            ResponseEncoding encoding, byte[] body) throws IOException {
+        if (theRequestDetails.getServer() instanceof RestfulServer) {
+            ((RestfulServer) theRequestDetails.getServer()).addHeadersToResponse(theServletResponse);
+        }
+        theServletResponse.setHeader(Constants.HEADER_CONTENT_LOCATION, theRequestDetails.getFhirServerBase() + "/"
+                + theRequestDetails.getResourceName() + "/" + theRequestDetails.getId().getIdPart());
+        theServletResponse.setStatus(Constants.STATUS_HTTP_200_OK);
+        theServletResponse.setContentType(encoding.getResourceContentType());
+        theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        if (theRequestDetails.isRespondGzip()) {
+            theServletResponse.addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+        }
+        theServletResponse.setContentLength(body.length);
+        try (OutputStream out = theServletResponse.getOutputStream()) {
+            out.write(body);
+        }
+    }
+}
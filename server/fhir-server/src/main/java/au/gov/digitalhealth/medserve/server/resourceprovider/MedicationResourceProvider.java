@@ -1,7 +1,6 @@
 package au.gov.digitalhealth.medserve.server.resourceprovider;
 
 import java.io.IOException;
-import java.util.Collections;
 import java.util.List;
 
 import org.hl7.fhir.dstu3.model.IdType;
@@ -11,6 +10,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
 import au.gov.digitalhealth.medserve.server.Util;
 import au.gov.digitalhealth.medserve.server.index.Index;
+import au.gov.digitalhealth.medserve.server.index.SearchSession;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.model.primitive.InstantDt;
@@ -64,25 +64,21 @@ public class MedicationResourceProvider implements IResourceProvider {
             @OptionalParam(name = FieldNames.INGREDIENT_COUNT) @Description(shortDefinition = "Filter on the number of ingredients a Medication has") NumberAndListParam ingredientCount,
             @Count Integer theCount) throws IOException {
         final InstantDt searchTime = InstantDt.withCurrentTime();
-        final int size = index.getMedicationsByParametersSize(ExtendedMedication.class, code, text, parent, ancestor,
-            medicationResourceType, form, container, ingredient, packageItem, brand, isBrand, manufacturer,
-            subsidyCode, status, lastModified, ingredientCount);
+        final int pageSize = Util.getCount(theCount);
+        final SearchSession session = index.searchMedicationsByParameters(ExtendedMedication.class, code, text,
+            parent, ancestor, medicationResourceType, form, container, ingredient, packageItem, brand, isBrand,
+            manufacturer, subsidyCode, status, lastModified, ingredientCount, pageSize);
 
         return new IBundleProvider() {
 
             @Override
             public Integer size() {
-                return size;
+                return session.size();
             }
 
             @Override
             public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
-                if (theFromIndex >= size) {
-                    return Collections.emptyList();
-                }
-                return index.getMedicationsByParameters(ExtendedMedication.class, code, text, parent, ancestor,
-                    medicationResourceType, form, container, ingredient, packageItem, brand, isBrand, manufacturer,
-                    subsidyCode, status, lastModified, ingredientCount, theFromIndex, theToIndex);
+                return session.getResources(theFromIndex, theToIndex);
             }
 
             @Override
@@ -92,7 +88,7 @@ public class MedicationResourceProvider implements IResourceProvider {
 
             @Override
             public Integer preferredPageSize() {
-                return Util.getCount(theCount);
+                return pageSize;
             }
 
             @Override
@@ -63,6 +63,45 @@ public class AmtIndexBuilder
     @Parameter(property = "clientSecret", required = true)
     private String clientSecret;
 
+    /**
+     * Number of threads building the index, defaults to the number of available processors
+     */
+    @Parameter(property = "indexThreads")
+    private Integer indexThreads;
+
+    /**
+     * Memory used to buffer documents before they are flushed to a new index segment
+     */
+    @Parameter(defaultValue = "256", property = "ramBufferSizeMb")
+    private double ramBufferSizeMb;
+
+    /**
+     * Number of index segments allowed in each tier before they are merged
+     */
+    @Parameter(defaultValue = "10", property = "segmentsPerTier")
+    private double segmentsPerTier;
+
+    /**
+     * Sort the index on resource type and id so the document order doesn't depend on the order they were indexed
+     */
+    @Parameter(defaultValue = "false", property = "sortIndex")
+    private boolean sortIndex;
+
+    /**
+     * Update an existing index at the index location in place, only replacing the documents that have changed. Every
+     * resource is still generated and turned into a document to compare its content hash, only the writing of
+     * unchanged documents is saved.
+     */
+    @Parameter(defaultValue = "false", property = "incrementalIndex")
+    private boolean incrementalIndex;
+
+    /**
+     * Directory to keep snapshots of loaded AMT releases in, so later builds against the same release, such as PBS
+     * only updates, skip loading it
+     */
+    @Parameter(property = "snapshotDirectory")
+    private File snapshotDirectory;
+
     Calendar cal = Calendar.getInstance();
 
     @Override
@@ -70,10 +109,22 @@ public class AmtIndexBuilder
         File amtSnapshot = getLatestAmtSnapshot();
         File pbsExtract = getLatestPbsExtract();
 
+        int threads = indexThreads == null ? Runtime.getRuntime().availableProcessors() : indexThreads;
+        AmtMedicationResourceGenerator generator;
         try {
-            AmtMedicationResourceGenerator generator =
-                    new AmtMedicationResourceGenerator(amtSnapshot.toPath(), pbsExtract.toPath());
-            generator.process(new IndexBuildingResourceProcessor(indexLocation));
+            // loaded before the index is opened so a bad download fails without touching it
+            generator = new AmtMedicationResourceGenerator(amtSnapshot.toPath(), pbsExtract.toPath(),
+                Runtime.getRuntime().availableProcessors(),
+                snapshotDirectory == null ? null : snapshotDirectory.toPath());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed loading AMT and PBS files", e);
+        }
+
+        try (IndexBuildingResourceProcessor processor =
+                new IndexBuildingResourceProcessor(indexLocation, threads, ramBufferSizeMb, segmentsPerTier,
+                    sortIndex, incrementalIndex)) {
+            generator.process(processor);
+            processor.finish();
         } catch (IOException e) {
             throw new MojoExecutionException("Failed building index", e);
         }
@@ -0,0 +1,327 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+
+/**
+ * Maps resource ids to Lucene doc ids for each resource type, so reads by id don't need to go to the term
+ * dictionary. Numeric ids (SNOMED CT ids) are held in an open addressing long to int table outside the Java heap,
+ * other ids like manufacturer codes in an ordinary map.
+ * <p>
+ * The table is written by {@link IndexBuildingResourceProcessor} to {@link #FILE_NAME} next to the index segments
+ * and memory mapped by the server, it records the generation of the index commit it was built from so a stale file
+ * is detected and ignored.
+ */
+public class DocIdTable {
+
+    public static final String FILE_NAME = "medserve-docids.dat";
+
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * Returned for ids which more than one document has
+     */
+    public static final int DUPLICATE = -2;
+
+    private static final int MAGIC = 0x4d534449;
+    private static final int VERSION = 1;
+
+    private long generation;
+    private Map<String, LongIntTable> numericIds = new HashMap<>();
+    private Map<String, Map<String, Integer>> otherIds = new HashMap<>();
+
+    private DocIdTable(long generation) {
+        this.generation = generation;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int get(String resourceType, String id) {
+        long numericId = parseId(id);
+        if (numericId > 0) {
+            LongIntTable table = numericIds.get(resourceType);
+            return table == null ? NOT_FOUND : table.get(numericId);
+        }
+        Map<String, Integer> ids = otherIds.get(resourceType);
+        Integer doc = ids == null ? null : ids.get(id);
+        return doc == null ? NOT_FOUND : doc;
+    }
+
+    /**
+     * Reads the resource type and id terms of every segment to find each resource's doc id
+     */
+    public static DocIdTable build(DirectoryReader reader) throws IOException {
+        Map<String, LongIntTable.Builder> numericIds = new HashMap<>();
+        DocIdTable result = new DocIdTable(reader.getIndexCommit().getGeneration());
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = leaf.reader();
+            Bits liveDocs = leafReader.getLiveDocs();
+            Terms typeTerms = leafReader.terms(FieldNames.RESOURCE_TYPE);
+            Terms idTerms = leafReader.terms(FieldNames.ID);
+            if (typeTerms == null || idTerms == null) {
+                continue;
+            }
+
+            String[] types = new String[leafReader.maxDoc()];
+            PostingsEnum postings = null;
+            TermsEnum termsEnum = typeTerms.iterator();
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                String type = term.utf8ToString();
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    types[doc] = type;
+                }
+            }
+
+            termsEnum = idTerms.iterator();
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                String id = term.utf8ToString();
+                long numericId = parseId(id);
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (types[doc] == null || liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    if (numericId > 0) {
+                        numericIds.computeIfAbsent(types[doc], k -> new LongIntTable.Builder())
+                            .add(numericId, leaf.docBase + doc);
+                    } else {
+                        Integer previous = result.otherIds.computeIfAbsent(types[doc], k -> new HashMap<>())
+                            .put(id, leaf.docBase + doc);
+                        if (previous != null) {
+                            result.otherIds.get(types[doc]).put(id, DUPLICATE);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Entry<String, LongIntTable.Builder> entry : numericIds.entrySet()) {
+            result.numericIds.put(entry.getKey(), entry.getValue().build());
+        }
+        return result;
+    }
+
+    /**
+     * Memory maps the table written for the index at the specified path
+     *
+     * @return the table, or null if there isn't one or it was built from a different commit of the index
+     */
+    public static DocIdTable load(Path indexPath, DirectoryReader reader) throws IOException {
+        Path file = indexPath.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != reader.getIndexCommit().getGeneration()) {
+            return null;
+        }
+
+        DocIdTable result = new DocIdTable(reader.getIndexCommit().getGeneration());
+        int numericTypes = buffer.getInt();
+        for (int i = 0; i < numericTypes; i++) {
+            String type = readString(buffer);
+            int capacity = buffer.getInt();
+            ByteBuffer slots = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slots.limit(capacity * LongIntTable.SLOT_BYTES);
+            buffer.position(buffer.position() + capacity * LongIntTable.SLOT_BYTES);
+            result.numericIds.put(type, new LongIntTable(slots, capacity));
+        }
+        int otherTypes = buffer.getInt();
+        for (int i = 0; i < otherTypes; i++) {
+            String type = readString(buffer);
+            int size = buffer.getInt();
+            Map<String, Integer> ids = new HashMap<>(size * 2);
+            for (int j = 0; j < size; j++) {
+                String id = readString(buffer);
+                ids.put(id, buffer.getInt());
+            }
+            result.otherIds.put(type, ids);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the table next to the index at the specified path, replacing any existing table
+     */
+    public void write(Path indexPath) throws IOException {
+        Path file = indexPath.resolve(FILE_NAME);
+        Path temp = indexPath.resolve(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = newBuffer(20);
+            header.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(numericIds.size());
+            writeFully(channel, header);
+
+            for (Entry<String, LongIntTable> entry : numericIds.entrySet()) {
+                byte[] type = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer typeHeader = newBuffer(8 + type.length);
+                typeHeader.putInt(type.length).put(type).putInt(entry.getValue().capacity);
+                writeFully(channel, typeHeader);
+                writeFully(channel, entry.getValue().slots.duplicate());
+            }
+
+            ByteBuffer count = newBuffer(4);
+            count.putInt(otherIds.size());
+            writeFully(channel, count);
+            for (Entry<String, Map<String, Integer>> entry : otherIds.entrySet()) {
+                byte[] type = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                int size = 8 + type.length;
+                for (String id : entry.getValue().keySet()) {
+                    size += 8 + id.getBytes(StandardCharsets.UTF_8).length;
+                }
+                ByteBuffer ids = newBuffer(size);
+                ids.putInt(type.length).put(type).putInt(entry.getValue().size());
+                for (Entry<String, Integer> id : entry.getValue().entrySet()) {
+                    byte[] bytes = id.getKey().getBytes(StandardCharsets.UTF_8);
+                    ids.putInt(bytes.length).put(bytes).putInt(id.getValue());
+                }
+                writeFully(channel, ids);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the id as a positive long, or -1 if it isn't a number that fits in one
+     */
+    static long parseId(String id) {
+        int length = id.length();
+        if (length == 0 || length > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        // leading zeros wouldn't survive the round trip back to the id string
+        return id.charAt(0) == '0' ? -1 : result;
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Open addressing hash table of positive long keys to int values with linear probing, held in a direct or
+     * memory mapped buffer of 12 byte slots. A zero key marks an empty slot.
+     */
+    static final class LongIntTable {
+        static final int SLOT_BYTES = 12;
+
+        private final ByteBuffer slots;
+        private final int capacity;
+        private final int mask;
+
+        LongIntTable(ByteBuffer slots, int capacity) {
+            this.slots = slots;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+        }
+
+        int get(long key) {
+            for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+                long current = slots.getLong(slot * SLOT_BYTES);
+                if (current == key) {
+                    return slots.getInt(slot * SLOT_BYTES + 8);
+                } else if (current == 0) {
+                    return NOT_FOUND;
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /**
+         * Collects keys and values in growable arrays, then sizes the table for a load factor of at most 0.5
+         */
+        static final class Builder {
+            private long[] keys = new long[1024];
+            private int[] values = new int[1024];
+            private int size;
+
+            void add(long key, int value) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                keys[size] = key;
+                values[size++] = value;
+            }
+
+            LongIntTable build() {
+                int capacity = Integer.highestOneBit(Math.max(size, 8) * 2 - 1) << 1;
+                ByteBuffer slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                LongIntTable table = new LongIntTable(slots, capacity);
+                for (int i = 0; i < size; i++) {
+                    for (int slot = hash(keys[i]) & table.mask;; slot = (slot + 1) & table.mask) {
+                        long current = slots.getLong(slot * SLOT_BYTES);
+                        if (current == 0) {
+                            slots.putLong(slot * SLOT_BYTES, keys[i]);
+                            slots.putInt(slot * SLOT_BYTES + 8, values[i]);
+                            break;
+                        } else if (current == keys[i]) {
+                            slots.putInt(slot * SLOT_BYTES + 8, DUPLICATE);
+                            break;
+                        }
+                    }
+                }
+                return table;
+            }
+        }
+    }
+}
@@ -2,11 +2,24 @@ package au.gov.digitalhealth.medserve.server.indexbuilder;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -16,13 +29,27 @@ import org.apache.lucene.analysis.custom.CustomAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.DomainResource;
@@ -42,20 +69,85 @@ import au.gov.digitalhealth.medserve.extension.SubsidyExtension;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
 import au.gov.digitalhealth.medserve.server.indexbuilder.constants.ResourceTypes;
 import au.gov.digitalhealth.medserve.transform.processor.MedicationResourceProcessor;
+import au.gov.digitalhealth.medserve.transform.util.FhirContextUtils;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 
+/**
+ * Builds the server's Lucene index from the resources it is given. The calling thread only records the form and
+ * ingredients of each medication, which packages later in the stream need, and queues the resource. A pool of
+ * workers encodes the JSON, builds the Documents and adds them to the shared {@link IndexWriter}. The index is
+ * committed once, by {@link #finish()} after all of the resources have been processed. Closing the processor without
+ * finishing it rolls the index back to its last commit, so a failed build leaves the previous index as it was.
+ * <p>
+ * Every document records a hash of its content. An incremental build appends to the existing index and only
+ * replaces the documents whose content hash differs from the previous build, so changes to a concept that
+ * propagate to the documents of its descendants, packages or products are picked up without reindexing anything
+ * else. Documents of resources no longer produced are deleted once the build is finished. Every resource is still
+ * encoded and hashed, so an incremental build saves the index writes and merges rather than the generation.
+ */
 public class IndexBuildingResourceProcessor implements MedicationResourceProcessor {
 
+    private static final Logger logger = Logger.getLogger(IndexBuildingResourceProcessor.class.getCanonicalName());
+
+    private static final int QUEUE_SIZE_PER_THREAD = 256;
+
+    /**
+     * Prefix of the statistics recorded in the commit user data of the finished index
+     */
+    public static final String STATISTICS_PREFIX = "medserve.";
+
+    private File outputDirectory;
     private IndexWriter writer;
-    private IParser parser;
-    private Map<String, CodeableConcept> formCache = new HashMap<>();
-    private Map<String, Set<Reference>> ingredientCache = new HashMap<>();
+    private ThreadLocal<IParser> parser;
+    private ThreadPoolExecutor executor;
+    private AtomicReference<Throwable> failure = new AtomicReference<>();
+    private Map<String, CodeableConcept> formCache = new ConcurrentHashMap<>();
+    private Map<String, Set<Reference>> ingredientCache = new ConcurrentHashMap<>();
+    private boolean sortIndex;
+    private long startTime = System.currentTimeMillis();
+    private Map<String, LongAdder> documentCounts = new ConcurrentHashMap<>();
+    /** content hashes of the documents already in the index by id, only for incremental builds */
+    private Map<String, Long> previousHashes;
+    private LongAdder updatedDocuments = new LongAdder();
+    private LongAdder unchangedDocuments = new LongAdder();
+    private boolean finished;
+    private ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 is not available", e);
+        }
+    });
 
     public IndexBuildingResourceProcessor(File outputDirectory) throws IOException {
+        this(outputDirectory, Runtime.getRuntime().availableProcessors(), 256, 10, false);
+    }
 
-        parser = FhirContext.forDstu3().newJsonParser();
-        parser.setPrettyPrint(false);
+    /**
+     * @param threads number of threads building and adding documents
+     * @param ramBufferSizeMb memory used to buffer added documents before they are flushed to a new segment
+     * @param segmentsPerTier number of segments allowed in each tier before they are merged, higher values merge
+     *            less often during the build
+     * @param sortIndex if true the index is sorted on resource type and id, so documents are in the same order
+     *            regardless of the order the worker threads add them
+     */
+    public IndexBuildingResourceProcessor(File outputDirectory, int threads, double ramBufferSizeMb,
+            double segmentsPerTier, boolean sortIndex) throws IOException {
+        this(outputDirectory, threads, ramBufferSizeMb, segmentsPerTier, sortIndex, false);
+    }
+
+    /**
+     * @param incremental if true and there is already an index in the output directory it is updated in place,
+     *            replacing only the documents that have changed, rather than being rebuilt
+     */
+    public IndexBuildingResourceProcessor(File outputDirectory, int threads, double ramBufferSizeMb,
+            double segmentsPerTier, boolean sortIndex, boolean incremental) throws IOException {
+
+        this.outputDirectory = outputDirectory;
+        this.sortIndex = sortIndex;
+        FhirContext context = FhirContextUtils.createContext();
+        parser = ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(false));
 
         Directory dir = FSDirectory.open(outputDirectory.toPath());
         Analyzer analyzer = CustomAnalyzer.builder()
@@ -63,42 +155,248 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
             .addTokenFilter(LowerCaseFilterFactory.class)
             .build();
 
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+
         IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        if (incremental && DirectoryReader.indexExists(dir)) {
+            previousHashes = readContentHashes(dir);
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            logger.info("Updating index " + outputDirectory + " of " + previousHashes.size() + " documents");
+        } else {
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        }
+        iwc.setRAMBufferSizeMB(ramBufferSizeMb);
+        iwc.setMergePolicy(mergePolicy);
+        if (sortIndex) {
+            iwc.setIndexSort(new Sort(new SortField(FieldNames.RESOURCE_TYPE, SortField.Type.STRING),
+                new SortField(FieldNames.ID, SortField.Type.STRING)));
+        }
         this.writer = new IndexWriter(dir, iwc);
+
+        // a full queue makes the calling thread index the resource itself, which holds back the generator
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * QUEUE_SIZE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     @Override
     public void processResources(List<? extends Resource> resources) throws IOException {
+        checkFailure();
         for (Resource resource : resources) {
-            Document document = new Document();
+            if (resource instanceof ExtendedMedication) {
+                cacheFormAndIngredients(ExtendedMedication.class.cast(resource));
+            }
+            executor.execute(() -> {
+                try {
+                    indexDocument(resource.getId(), createDocument(resource));
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+    }
 
-            document.add(new StringField(FieldNames.ID, resource.getId(), Store.YES));
+    /**
+     * Adds the document, or for an incremental build replaces the previous document for the id if its content has
+     * changed
+     */
+    private void indexDocument(String id, Document document) throws IOException {
+        long hash = contentHash(document);
+        document.add(new NumericDocValuesField(FieldNames.CONTENT_HASH, hash));
+        if (previousHashes == null) {
+            writer.addDocument(document);
+        } else {
+            Long previousHash = previousHashes.remove(id);
+            if (previousHash != null && previousHash == hash) {
+                unchangedDocuments.increment();
+            } else {
+                writer.updateDocument(new Term(FieldNames.ID, id), document);
+                updatedDocuments.increment();
+            }
+        }
+    }
+
+    /**
+     * Hash of the indexed and stored values of the document, which doesn't depend on the order of the fields as
+     * some values are added from unordered sets
+     */
+    private long contentHash(Document document) {
+        MessageDigest md5 = digest.get();
+        long hash = 0;
+        for (IndexableField field : document) {
+            md5.update(field.name().getBytes(StandardCharsets.UTF_8));
+            md5.update((byte) 0);
+            if (field.stringValue() != null) {
+                md5.update(field.stringValue().getBytes(StandardCharsets.UTF_8));
+            } else if (field.binaryValue() != null) {
+                BytesRef value = field.binaryValue();
+                md5.update(value.bytes, value.offset, value.length);
+            } else if (field.numericValue() != null) {
+                md5.update(field.numericValue().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            hash += ByteBuffer.wrap(md5.digest()).getLong();
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the id and content hash of every live document in the existing index, documents from before content
+     * hashes were recorded get a hash of 0 so they are always replaced
+     */
+    private static Map<String, Long> readContentHashes(Directory dir) throws IOException {
+        Map<String, Long> hashes = new ConcurrentHashMap<>();
+        Set<String> idField = Collections.singleton(FieldNames.ID);
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                LeafReader leafReader = leaf.reader();
+                Bits liveDocs = leafReader.getLiveDocs();
+                NumericDocValues values = leafReader.getNumericDocValues(FieldNames.CONTENT_HASH);
+                for (int doc = 0; doc < leafReader.maxDoc(); doc++) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        String id = leafReader.document(doc, idField).get(FieldNames.ID);
+                        long hash = values != null && values.advanceExact(doc) ? values.longValue() : 0;
+                        hashes.put(id, hash);
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private Document createDocument(Resource resource) {
+        Document document = new Document();
+        String resourceType = resource.getResourceType().name().toLowerCase();
+
+        document.add(new StringField(FieldNames.ID, resource.getId(), Store.YES));
+        document.add(new StringField(FieldNames.RESOURCE_TYPE, resourceType, Store.NO));
+        if (sortIndex) {
+            document.add(new SortedDocValuesField(FieldNames.ID, new BytesRef(resource.getId())));
+            document.add(new SortedDocValuesField(FieldNames.RESOURCE_TYPE, new BytesRef(resourceType)));
+        }
+        documentCounts.computeIfAbsent(resourceType, k -> new LongAdder()).increment();
+        String text = ((DomainResource) resource).getText().getDiv().allText();
+
+        document.add(new TextField(FieldNames.DISPLAY, text, Store.NO));
+
+        if (resource instanceof ExtendedMedication) {
+            indextMedicationResource(resource, document);
+        } else if (resource instanceof Substance) {
+            ExtendedSubstance substance = ExtendedSubstance.class.cast(resource);
             document.add(
-                new StringField(FieldNames.RESOURCE_TYPE, resource.getResourceType().name().toLowerCase(), Store.NO));
-            String text = ((DomainResource) resource).getText().getDiv().allText();
+                new StringField(FieldNames.STATUS, substance.getStatus().toCode(), Store.NO));
+            document.add(
+                new StringField(FieldNames.LAST_MODIFIED, substance.getLastModified().asStringValue(), Store.NO));
+            indexCodeableConcept(document, substance.getCode(), FieldNames.CODE);
+        } else if (resource instanceof Organization) {
+            document.add(new StringField(FieldNames.STATUS, "active", Store.NO));
+        } else {
+            throw new RuntimeException("Unknown resource type " + resource.getClass().getCanonicalName());
+        }
+        document.add(new StoredField(FieldNames.JSON, parser.get().encodeResourceToString(resource)));
 
-            document.add(new TextField(FieldNames.DISPLAY, text, Store.NO));
+        return document;
+    }
 
-            if (resource instanceof ExtendedMedication) {
-                indextMedicationResource(resource, document);
-            } else if (resource instanceof Substance) {
-                ExtendedSubstance substance = ExtendedSubstance.class.cast(resource);
-                document.add(
-                    new StringField(FieldNames.STATUS, substance.getStatus().toCode(), Store.NO));
-                document.add(
-                    new StringField(FieldNames.LAST_MODIFIED, substance.getLastModified().asStringValue(), Store.NO));
-                indexCodeableConcept(document, substance.getCode(), FieldNames.CODE);
-            } else if (resource instanceof Organization) {
-                document.add(new StringField(FieldNames.STATUS, "active", Store.NO));
-            } else {
-                throw new RuntimeException("Unknown resource type " + resource.getClass().getCanonicalName());
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Failed indexing resources", e);
+        }
+    }
+
+    private void awaitWorkers() throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting for the queued resources
             }
-            document.add(new StoredField(FieldNames.JSON, parser.encodeResourceToString(resource)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for resources to be indexed", e);
+        }
+    }
 
-            writer.addDocument(document);
+    /**
+     * Finishes the index once all resources are added - waits for the workers, merges the index down to a single
+     * segment, commits it with the build statistics in the commit user data, and writes the {@link DocIdTable} for
+     * it alongside the segments. Only to be called once every resource has been processed successfully.
+     */
+    public void finish() throws IOException {
+        awaitWorkers();
+        checkFailure();
+
+        int deletedDocuments = 0;
+        if (previousHashes != null) {
+            for (String id : previousHashes.keySet()) {
+                writer.deleteDocuments(new Term(FieldNames.ID, id));
+                deletedDocuments++;
+            }
+        }
+
+        long indexedTime = System.currentTimeMillis();
+        Directory dir = writer.getDirectory();
+        writer.commit();
+        int segmentsBeforeMerge = SegmentInfos.readLatestCommit(dir).size();
+
+        // merging an updated index down to one segment would rewrite all of it, leave that to the merge policy
+        if (previousHashes == null) {
+            writer.forceMerge(1);
         }
+        long mergedTime = System.currentTimeMillis();
+
+        Map<String, String> statistics = new TreeMap<>();
+        documentCounts
+            .forEach((type, count) -> statistics.put(STATISTICS_PREFIX + type + ".count", count.toString()));
+        statistics.put(STATISTICS_PREFIX + "documents", Integer.toString(writer.numDocs()));
+        statistics.put(STATISTICS_PREFIX + "segmentsBeforeMerge", Integer.toString(segmentsBeforeMerge));
+        statistics.put(STATISTICS_PREFIX + "indexMillis", Long.toString(indexedTime - startTime));
+        statistics.put(STATISTICS_PREFIX + "mergeMillis", Long.toString(mergedTime - indexedTime));
+        statistics.put(STATISTICS_PREFIX + "sorted", Boolean.toString(sortIndex));
+        statistics.put(STATISTICS_PREFIX + "incremental", Boolean.toString(previousHashes != null));
+        if (previousHashes != null) {
+            statistics.put(STATISTICS_PREFIX + "updated", updatedDocuments.toString());
+            statistics.put(STATISTICS_PREFIX + "unchanged", unchangedDocuments.toString());
+            statistics.put(STATISTICS_PREFIX + "deleted", Integer.toString(deletedDocuments));
+        }
+        statistics.put(STATISTICS_PREFIX + "built", Instant.now().toString());
+        writer.setLiveCommitData(statistics.entrySet());
         writer.commit();
+        writer.close();
+
+        long size = 0;
+        for (String file : dir.listAll()) {
+            size += dir.fileLength(file);
+        }
+        logger.info("Finished index " + outputDirectory + " of " + size + " bytes " + statistics);
+
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            DocIdTable.build(reader).write(outputDirectory.toPath());
+        }
+        dir.close();
+        finished = true;
+    }
+
+    /**
+     * Rolls the index back to its last commit unless it has been finished, discarding everything added or deleted
+     * since
+     */
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        executor.shutdownNow();
+        try {
+            awaitWorkers();
+        } finally {
+            Directory dir = writer.getDirectory();
+            if (writer.isOpen()) {
+                writer.rollback();
+            }
+            dir.close();
+            logger.warning("Index " + outputDirectory + " was not finished, rolled back to its last commit");
+        }
     }
 
     private void indextMedicationResource(Resource resource, Document document) {
@@ -127,7 +425,6 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
 
         if (medication.getForm() != null && !medication.getForm().isEmpty()) {
             indexCodeableConcept(document, medication.getForm(), FieldNames.FORM);
-            formCache.put(resource.getId(), medication.getForm());
         }
 
         if (medication.getIngredient() != null && !medication.getIngredient().isEmpty()) {
@@ -135,7 +432,6 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
                 try {
                     indexReference(document, ingredient.getItemReference(), FieldNames.INGREDIENT,
                         ResourceTypes.SUBSTANCE_RESOURCE_TYPE_VALUE);
-                    cacheIngredient(resource.getId(), ingredient.getItemReference());
                 } catch (FHIRException e) {
                     throw new RuntimeException("Cannot get reference for ingredient " + ingredient);
                 }
@@ -155,8 +451,6 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
                             ResourceTypes.MEDICATION_RESOURCE_TYPE_VALUE);
                         indexCodeableConcept(document, formCache.get(getIdFromReference(content.getItemReference(),
                             ResourceTypes.MEDICATION_RESOURCE_TYPE_VALUE)), FieldNames.FORM);
-                        formCache.put(resource.getId(), formCache.get(getIdFromReference(content.getItemReference(),
-                            ResourceTypes.MEDICATION_RESOURCE_TYPE_VALUE)));
 
                         Set<Reference> ingredientSet =
                                 ingredientCache.get(getIdFromReference(content.getItemReference(),
@@ -167,8 +461,6 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
                         for (Reference ingredientReference : ingredientSet) {
                             indexReference(document, ingredientReference, FieldNames.INGREDIENT,
                                 ResourceTypes.SUBSTANCE_RESOURCE_TYPE_VALUE);
-
-                            cacheIngredient(resource.getId(), ingredientReference);
                         }
                         
                     } catch (FHIRException e) {
@@ -196,12 +488,53 @@ public class IndexBuildingResourceProcessor implements MedicationResourceProcess
         }
     }
 
-    private void cacheIngredient(String id, Reference itemReference) {
-        Set<Reference> ingredients = ingredientCache.get(id);
-        if (ingredients == null) {
-            ingredients = new HashSet<>();
-            ingredientCache.put(id, ingredients);
+    /**
+     * Records the form and ingredients of a medication so packages of it can be indexed with them. Packages take
+     * the form and ingredients of their contents, so this must be called in the order the resources are produced.
+     * Each medication's ingredient set is complete before it is cached and isn't changed afterwards, so the workers
+     * can read the caches while this runs.
+     */
+    private void cacheFormAndIngredients(ExtendedMedication medication) {
+        String id = medication.getId();
+        Set<Reference> ingredients = new HashSet<>();
+
+        if (medication.getForm() != null && !medication.getForm().isEmpty()) {
+            formCache.put(id, medication.getForm());
         }
+
+        for (MedicationIngredientComponent ingredient : medication.getIngredient()) {
+            try {
+                addIngredient(ingredients, ingredient.getItemReference());
+            } catch (FHIRException e) {
+                throw new RuntimeException("Cannot get reference for ingredient " + ingredient);
+            }
+        }
+
+        if (medication.getPackage() != null) {
+            for (MedicationPackageContentComponent content : medication.getPackage().getContent()) {
+                try {
+                    String itemId = getIdFromReference(content.getItemReference(),
+                        ResourceTypes.MEDICATION_RESOURCE_TYPE_VALUE);
+                    CodeableConcept form = formCache.get(itemId);
+                    if (form != null) {
+                        formCache.put(id, form);
+                    }
+                    for (Reference ingredientReference : ingredientCache.getOrDefault(itemId,
+                        Collections.emptySet())) {
+                        addIngredient(ingredients, ingredientReference);
+                    }
+                } catch (FHIRException e) {
+                    throw new RuntimeException("Cannot get reference for package-item " + content);
+                }
+            }
+        }
+
+        if (!ingredients.isEmpty()) {
+            ingredientCache.put(id, Collections.unmodifiableSet(ingredients));
+        }
+    }
+
+    private void addIngredient(Set<Reference> ingredients, Reference itemReference) {
         if (!ingredients.stream().anyMatch(r -> r.getReference().equals(itemReference.getReference()))) {
             ingredients.add(itemReference);
         }
@@ -22,6 +22,7 @@ public final class FieldNames {
     public static final String STATUS = "status";
     public static final String LAST_MODIFIED = "last-modified";
     public static final String INGREDIENT_COUNT = "ingredient-count";
+    public static final String CONTENT_HASH = "content-hash";
 
     private FieldNames() {
         throw new AssertionError("Constants class not to be constructed!");
@@ -0,0 +1,158 @@
+package au.gov.digitalhealth.medserve.server.indexbuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import au.gov.digitalhealth.medserve.server.indexbuilder.constants.FieldNames;
+
+public class DocIdTableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path indexPath;
+    private Directory directory;
+    private IndexWriter writer;
+
+    @Before
+    public void openIndex() throws IOException {
+        indexPath = folder.newFolder("index").toPath();
+        directory = FSDirectory.open(indexPath);
+        writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()));
+    }
+
+    @After
+    public void closeIndex() throws IOException {
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void findsDocIdsByResourceTypeAndId() throws IOException {
+        addDocuments();
+
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            assertLookups(DocIdTable.build(reader));
+        }
+    }
+
+    @Test
+    public void loadsTableWrittenForTheSameCommit() throws IOException {
+        addDocuments();
+
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            DocIdTable.build(reader).write(indexPath);
+            DocIdTable loaded = DocIdTable.load(indexPath, reader);
+
+            assertNotNull(loaded);
+            assertEquals(reader.getIndexCommit().getGeneration(), loaded.getGeneration());
+            assertLookups(loaded);
+        }
+    }
+
+    @Test
+    public void ignoresTableWrittenForAnotherCommit() throws IOException {
+        addDocuments();
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            assertNull(DocIdTable.load(indexPath, reader));
+            DocIdTable.build(reader).write(indexPath);
+        }
+
+        writer.addDocument(document("Medication", "50001"));
+        writer.commit();
+
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            assertNull(DocIdTable.load(indexPath, reader));
+        }
+    }
+
+    @Test
+    public void holdsManyNumericIds() throws IOException {
+        for (int i = 1; i <= 5000; i++) {
+            writer.addDocument(document("Medication", i + "021"));
+        }
+        writer.commit();
+
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            DocIdTable.build(reader).write(indexPath);
+            DocIdTable loaded = DocIdTable.load(indexPath, reader);
+            for (int i = 1; i <= 5000; i++) {
+                assertEquals(i - 1, loaded.get("Medication", i + "021"));
+            }
+            assertEquals(DocIdTable.NOT_FOUND, loaded.get("Medication", "5001021"));
+        }
+    }
+
+    @Test
+    public void parsesOnlyIdsThatRoundTripAsLongs() {
+        assertEquals(21, DocIdTable.parseId("21"));
+        assertEquals(999999999999999999L, DocIdTable.parseId("999999999999999999"));
+        assertEquals(-1, DocIdTable.parseId(""));
+        assertEquals(-1, DocIdTable.parseId("021"));
+        assertEquals(-1, DocIdTable.parseId("GK"));
+        assertEquals(-1, DocIdTable.parseId("12a"));
+        assertEquals(-1, DocIdTable.parseId("1000000000000000000"));
+    }
+
+    /**
+     * Adds documents 0 to 7 in one segment, then deletes document 5
+     */
+    private void addDocuments() throws IOException {
+        writer.addDocument(document("Medication", "10001"));
+        writer.addDocument(document("Medication", "20001"));
+        writer.addDocument(document("Substance", "10001"));
+        writer.addDocument(document("Organization", "GK"));
+        writer.addDocument(document("Organization", "GK"));
+        writer.addDocument(document("Medication", "30001"));
+        writer.addDocument(document("Medication", "40001"));
+        writer.addDocument(document("Medication", "40001"));
+        writer.deleteDocuments(new BooleanQuery.Builder()
+            .add(new TermQuery(new Term(FieldNames.RESOURCE_TYPE, "Medication")), Occur.MUST)
+            .add(new TermQuery(new Term(FieldNames.ID, "30001")), Occur.MUST)
+            .build());
+        writer.commit();
+    }
+
+    private static void assertLookups(DocIdTable table) {
+        assertEquals(0, table.get("Medication", "10001"));
+        assertEquals(1, table.get("Medication", "20001"));
+        assertEquals(2, table.get("Substance", "10001"));
+        assertEquals(DocIdTable.DUPLICATE, table.get("Organization", "GK"));
+        assertEquals(DocIdTable.NOT_FOUND, table.get("Medication", "30001"));
+        assertEquals(DocIdTable.DUPLICATE, table.get("Medication", "40001"));
+        assertEquals(DocIdTable.NOT_FOUND, table.get("Medication", "50001"));
+        assertEquals(DocIdTable.NOT_FOUND, table.get("Substance", "20001"));
+        assertEquals(DocIdTable.NOT_FOUND, table.get("Organization", "XX"));
+        assertEquals(DocIdTable.NOT_FOUND, table.get("Device", "10001"));
+    }
+
+    private static Document document(String resourceType, String id) {
+        Document document = new Document();
+        document.add(new StringField(FieldNames.RESOURCE_TYPE, resourceType, Store.YES));
+        document.add(new StringField(FieldNames.ID, id, Store.YES));
+        return document;
+    }
+}
@@ -16,6 +16,9 @@ import org.apache.commons.cli.ParseException;
 import au.gov.digitalhealth.medserve.transform.amt.cache.AmtCache;
 import au.gov.digitalhealth.medserve.transform.processor.FhirServerMedicationResourceProcessor;
 import au.gov.digitalhealth.medserve.transform.processor.FileWritingMedicationResourceProcessor;
+import au.gov.digitalhealth.medserve.transform.processor.MedicationResourceProcessor;
+import au.gov.digitalhealth.medserve.transform.processor.NdjsonMedicationResourceProcessor;
+import au.gov.digitalhealth.medserve.transform.processor.ValidationMode;
 
 public class Amt2Fhir {
 
@@ -27,6 +30,24 @@ public class Amt2Fhir {
 
     private static final String OUTPUT_FILE_OPTION = "o";
 
+    private static final String SNAPSHOT_DIRECTORY_OPTION = "snapshot";
+
+    private static final String NDJSON_OPTION = "ndjson";
+
+    private static final String GZIP_OPTION = "gzip";
+
+    private static final String ROLLOVER_OPTION = "rollover";
+
+    private static final String BATCH_SIZE_OPTION = "batch";
+
+    private static final String IN_FLIGHT_OPTION = "inFlight";
+
+    private static final String CHECKPOINT_OPTION = "checkpoint";
+
+    private static final String VALIDATION_OPTION = "validation";
+
+    private static final String VALIDATION_PARAMETER_OPTION = "validationParameter";
+
     private static final Logger logger = Logger.getLogger(AmtCache.class.getCanonicalName());
 
 
@@ -54,12 +75,66 @@ public class Amt2Fhir {
             .desc("FHIR server URL to post Medication Resources to "
                     + "- e.g. http://fhir-dev.healthintersections.com.au/open/")
             .build());
+        options.addOption(Option.builder(BATCH_SIZE_OPTION)
+            .argName("N")
+            .hasArg()
+            .desc("Number of resources posted to the FHIR server in each transaction, defaults to "
+                    + FhirServerMedicationResourceProcessor.DEFAULT_BATCH_SIZE)
+            .build());
+        options.addOption(Option.builder(IN_FLIGHT_OPTION)
+            .argName("N")
+            .hasArg()
+            .desc("Number of transactions posted to the FHIR server at once, defaults to "
+                    + FhirServerMedicationResourceProcessor.DEFAULT_IN_FLIGHT)
+            .build());
+        options.addOption(Option.builder(CHECKPOINT_OPTION)
+            .longOpt("checkpointFile")
+            .argName("CHECKPOINT_FILE")
+            .hasArg()
+            .desc("File recording the resources the FHIR server has accepted, so a restarted or later upload to the "
+                    + "same server only posts new or changed resources")
+            .build());
         options.addOption(Option.builder(OUTPUT_FILE_OPTION)
             .longOpt("outputDirectory")
             .argName("OUTPUT_DIR")
             .hasArg()
             .desc("Output directory to write out Medication Resources as files")
             .build());
+        options.addOption(Option.builder(SNAPSHOT_DIRECTORY_OPTION)
+            .longOpt("snapshotDirectory")
+            .argName("SNAPSHOT_DIR")
+            .hasArg()
+            .desc("Directory to keep snapshots of loaded AMT releases in, so later runs against the same release "
+                    + "skip loading it")
+            .build());
+
+        options.addOption(Option.builder(NDJSON_OPTION)
+            .longOpt("ndjsonDirectory")
+            .argName("NDJSON_DIR")
+            .hasArg()
+            .desc("Output directory to write out Medication Resources as NDJSON files, one per resource type")
+            .build());
+        options.addOption(Option.builder(GZIP_OPTION)
+            .desc("Gzip the NDJSON files")
+            .build());
+        options.addOption(Option.builder(ROLLOVER_OPTION)
+            .longOpt("ndjsonRolloverMb")
+            .argName("MB")
+            .hasArg()
+            .desc("Start a new NDJSON file for a resource type after this many uncompressed megabytes")
+            .build());
+
+        options.addOption(Option.builder(VALIDATION_OPTION)
+            .argName("FULL|SAMPLED|FIRST_PER_TYPE")
+            .hasArg()
+            .desc("Which resources written out as files are validated, defaults to FULL")
+            .build());
+        options.addOption(Option.builder(VALIDATION_PARAMETER_OPTION)
+            .argName("N")
+            .hasArg()
+            .desc("Percentage of resources validated for SAMPLED validation, or number of resources of each type "
+                    + "for FIRST_PER_TYPE validation")
+            .build());
 
         CommandLineParser parser = new DefaultParser();
 
@@ -68,19 +143,54 @@ public class Amt2Fhir {
 
             AmtMedicationResourceGenerator generator = new AmtMedicationResourceGenerator(
                 FileSystems.getDefault().getPath(line.getOptionValue(INPUT_FILE_OPTION)),
-                FileSystems.getDefault().getPath(line.getOptionValue(PBS_INPUT_FILE_OPTION)));
-
-            if (!line.hasOption(OUTPUT_FILE_OPTION) && !line.hasOption(FHIR_OPTION)) {
-                throw new ParseException("At least one output mode -o or -url must be specified");
+                FileSystems.getDefault().getPath(line.getOptionValue(PBS_INPUT_FILE_OPTION)),
+                Runtime.getRuntime().availableProcessors(),
+                line.hasOption(SNAPSHOT_DIRECTORY_OPTION)
+                        ? FileSystems.getDefault().getPath(line.getOptionValue(SNAPSHOT_DIRECTORY_OPTION))
+                        : null);
+
+            if (!line.hasOption(OUTPUT_FILE_OPTION) && !line.hasOption(FHIR_OPTION)
+                    && !line.hasOption(NDJSON_OPTION)) {
+                throw new ParseException("At least one output mode -o, -ndjson or -url must be specified");
             }
 
             if (line.hasOption(FHIR_OPTION)) {
-                generator.process(new FhirServerMedicationResourceProcessor(line.getOptionValue(FHIR_OPTION), 200000));
+                try (MedicationResourceProcessor processor =
+                        new FhirServerMedicationResourceProcessor(line.getOptionValue(FHIR_OPTION), 200000,
+                            line.hasOption(BATCH_SIZE_OPTION)
+                                    ? Integer.parseInt(line.getOptionValue(BATCH_SIZE_OPTION))
+                                    : FhirServerMedicationResourceProcessor.DEFAULT_BATCH_SIZE,
+                            line.hasOption(IN_FLIGHT_OPTION)
+                                    ? Integer.parseInt(line.getOptionValue(IN_FLIGHT_OPTION))
+                                    : FhirServerMedicationResourceProcessor.DEFAULT_IN_FLIGHT,
+                            FhirServerMedicationResourceProcessor.DEFAULT_RETRIES,
+                            FhirServerMedicationResourceProcessor.DEFAULT_RETRY_BACKOFF_MILLIS,
+                            line.hasOption(CHECKPOINT_OPTION)
+                                    ? FileSystems.getDefault().getPath(line.getOptionValue(CHECKPOINT_OPTION))
+                                    : null)) {
+                    generator.process(processor);
+                }
             }
 
             if (line.hasOption(OUTPUT_FILE_OPTION)) {
-                generator.process(new FileWritingMedicationResourceProcessor(
-                    FileSystems.getDefault().getPath(line.getOptionValue(OUTPUT_FILE_OPTION))));
+                try (MedicationResourceProcessor processor = new FileWritingMedicationResourceProcessor(
+                    FileSystems.getDefault().getPath(line.getOptionValue(OUTPUT_FILE_OPTION)),
+                    ValidationMode.valueOf(line.getOptionValue(VALIDATION_OPTION, ValidationMode.FULL.name())),
+                    Integer.parseInt(line.getOptionValue(VALIDATION_PARAMETER_OPTION, "100")),
+                    Runtime.getRuntime().availableProcessors())) {
+                    generator.process(processor);
+                }
+            }
+
+            if (line.hasOption(NDJSON_OPTION)) {
+                long rolloverBytes = line.hasOption(ROLLOVER_OPTION)
+                        ? Long.parseLong(line.getOptionValue(ROLLOVER_OPTION)) << 20
+                        : Long.MAX_VALUE;
+                try (MedicationResourceProcessor processor = new NdjsonMedicationResourceProcessor(
+                    FileSystems.getDefault().getPath(line.getOptionValue(NDJSON_OPTION)), line.hasOption(GZIP_OPTION),
+                    rolloverBytes)) {
+                    generator.process(processor);
+                }
             }
 
         } catch (ParseException exp) {
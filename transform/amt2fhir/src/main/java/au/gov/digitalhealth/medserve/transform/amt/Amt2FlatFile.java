@@ -10,7 +10,6 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -85,7 +84,7 @@ public class Amt2FlatFile {
 
             writeCsvHeader(writer);
 
-            for (Concept ctpp : conceptCache.getCtpps().values()) {
+            for (Concept ctpp : conceptCache.getCtpps()) {
                 Collection<Concept> tpps = getParents(AmtConcept.TPP, AmtConcept.CTPP, Collections.singleton(ctpp));
 
                 for (Concept tpp : tpps) {
@@ -98,7 +97,7 @@ public class Amt2FlatFile {
                             mps.addAll(getParents(AmtConcept.MP, AmtConcept.MPUU, Collections.singletonList(mpuu)));
                         }
 
-                        mps.remove(new Concept(21220011000036103L, true, new Date()));
+                        mps.remove(new Concept(21220011000036103L, true, 0));
 
                         // if (mps.size() > 1) {
                         // addToCsv(writer, mps.size() > 1, mpps.size() > 1, ctpp, tpp, mpp, null);
@@ -139,7 +138,7 @@ public class Amt2FlatFile {
         Set<Concept> parents = new HashSet<>();
         Set<Concept> allParents = new HashSet<>();
         for (Concept concept : concepts) {
-            for (Concept parent : concept.getParents().values()) {
+            for (Concept parent : concept.getParents()) {
                 if (!AmtConcept.isEnumValue(parent.getId() + "")) {
                     allParents.add(parent);
                     if (parent.hasAtLeastOneMatchingAncestor(parentType)
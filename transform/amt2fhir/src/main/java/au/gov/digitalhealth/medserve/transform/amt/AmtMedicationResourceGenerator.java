@@ -1,15 +1,28 @@
 package au.gov.digitalhealth.medserve.transform.amt;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,7 +35,6 @@ import org.hl7.fhir.dstu3.model.Annotation;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.ContactPoint;
-import org.hl7.fhir.dstu3.model.DateType;
 import org.hl7.fhir.dstu3.model.DecimalType;
 import org.hl7.fhir.dstu3.model.DomainResource;
 import org.hl7.fhir.dstu3.model.Enumeration;
@@ -61,10 +73,13 @@ import au.gov.digitalhealth.medserve.transform.amt.enumeration.AmtConcept;
 import au.gov.digitalhealth.medserve.transform.amt.enumeration.AttributeType;
 import au.gov.digitalhealth.medserve.transform.amt.model.Concept;
 import au.gov.digitalhealth.medserve.transform.amt.model.DataTypeProperty;
+import au.gov.digitalhealth.medserve.transform.amt.model.EffectiveTime;
 import au.gov.digitalhealth.medserve.transform.amt.model.Manufacturer;
 import au.gov.digitalhealth.medserve.transform.amt.model.Relationship;
 import au.gov.digitalhealth.medserve.transform.amt.model.Subsidy;
 import au.gov.digitalhealth.medserve.transform.processor.MedicationResourceProcessor;
+import au.gov.digitalhealth.medserve.transform.util.ConcurrentLongCache;
+import au.gov.digitalhealth.medserve.transform.util.ConcurrentLongSet;
 import au.gov.digitalhealth.medserve.transform.util.FhirCodeSystemUri;
 import au.gov.digitalhealth.medserve.transform.util.FileUtils;
 import ca.uhn.fhir.context.FhirContext;
@@ -77,18 +92,57 @@ public class AmtMedicationResourceGenerator {
             "NCTS_SCT_RF2_DISTRIBUTION_32506021000036107-(\\d{8})-SNAPSHOT\\.zip";
     private static Pattern amtFilePattern = Pattern.compile(AMT_FILE_PATTERN);
 
+    /** maximum number of concepts' resources waiting to be handed to the processor */
+    private static final int HAND_OFF_CAPACITY = 1024;
+
     private AmtCache conceptCache;
-    private Set<String> processedConcepts = new HashSet<>();
+    /** ids of the concepts whose resources have been created, claimed by the thread creating them */
+    private ConcurrentLongSet processedConcepts;
+    /** codes of the manufacturers whose Organization resources have been created */
+    private Set<String> processedManufacturers = ConcurrentHashMap.newKeySet();
     private String amtVersion;
+    private int threads;
+
+    /*
+     * Values that are the same in many resources are created once and shared by them, the resources are only read
+     * once they have been created
+     */
+    private SourceCodeSystemExtension sourceCodeSystem;
+    /** subsidy extensions by subsidy, subsidies with the same PBS code share their notes, restriction and ATC codes */
+    private Map<Subsidy, SubsidyExtension> subsidyExtensions = new ConcurrentHashMap<>();
+    private Map<String, Coding> atcCodings = new ConcurrentHashMap<>();
 
     FhirValidator validator = FhirContext.forDstu3().newValidator();
 
-    private Map<Long, Reference> referenceCache = new HashMap<>();
+    private ConcurrentLongCache<Reference> referenceCache = new ConcurrentLongCache<>();
 
-    private Map<Long, ExtendedReference> extendedReferenceCache = new HashMap<>();
+    private ConcurrentLongCache<ExtendedReference> extendedReferenceCache = new ConcurrentLongCache<>();
 
     public AmtMedicationResourceGenerator(Path amtReleaseZipPath, Path pbsExtractPath)
             throws IOException {
+        this(amtReleaseZipPath, pbsExtractPath, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of threads creating resources
+     */
+    public AmtMedicationResourceGenerator(Path amtReleaseZipPath, Path pbsExtractPath, int threads)
+            throws IOException {
+        this(amtReleaseZipPath, pbsExtractPath, threads, null);
+    }
+
+    /**
+     * @param threads number of threads creating resources
+     * @param snapshotDirectory directory to keep snapshots of loaded AMT releases in, keyed by release version, so
+     *            later runs for the same release skip loading it - or null to always load the release
+     */
+    public AmtMedicationResourceGenerator(Path amtReleaseZipPath, Path pbsExtractPath, int threads,
+            Path snapshotDirectory) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required, not " + threads);
+        }
+        this.threads = threads;
+
         Matcher amtFileNameMatcher = amtFilePattern.matcher(amtReleaseZipPath.getFileName().toString());
         if (!amtFileNameMatcher.matches()) {
             throw new IllegalArgumentException("AMT file name " + amtReleaseZipPath.getFileName()
@@ -97,67 +151,154 @@ public class AmtMedicationResourceGenerator {
 
         amtVersion = "http://snomed.info/sct?version=http%3A%2F%2Fsnomed.info%2Fsct%2F32506021000036107%2Fversion%2F"
                 + amtFileNameMatcher.group(1);
+        sourceCodeSystem = new SourceCodeSystemExtension(new UriType(FhirCodeSystemUri.SNOMED_CT_SYSTEM_URI.getUri()),
+            new StringType(amtVersion));
+
+        Path snapshot = null;
+        if (snapshotDirectory != null) {
+            Files.createDirectories(snapshotDirectory);
+            snapshot = snapshotDirectory.resolve("amt-" + amtFileNameMatcher.group(1) + ".snapshot");
+        }
 
         this.conceptCache =
                 new AmtCache(FileUtils.getFileSystemForZipPath(amtReleaseZipPath),
-                    FileUtils.getFileSystemForZipPath(pbsExtractPath));
+                    FileUtils.getFileSystemForZipPath(pbsExtractPath), snapshot);
     }
 
+    /**
+     * Creates all of the resources for the processor, each call starts afresh so the generator can feed more than
+     * one processor
+     */
     public void process(MedicationResourceProcessor processor) throws IOException {
-        processConceptList(conceptCache.getCtpps(), "CTPP", processor);
-
-        logger.info("Mopping up concepts unreferenced by CTPPs");
-
-        processConceptList(conceptCache.getTpps(), "TPP", processor);
-        processConceptList(conceptCache.getMpps(), "MPP", processor);
-        processConceptList(conceptCache.getTpuus(), "TPUU", processor);
-        processConceptList(conceptCache.getMpuus(), "MPUU", processor);
-        processConceptList(conceptCache.getMps(), "MP", processor);
-        processConceptList(conceptCache.getSubstances(), "Substance", processor);
+        processedConcepts = new ConcurrentLongSet(conceptCache.getConceptCount());
+        processedManufacturers.clear();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        HandOffOrder order = new HandOffOrder();
+        try {
+            processConceptList(conceptCache.getCtpps(), "CTPP", processor, pool, order);
+
+            logger.info("Mopping up concepts unreferenced by CTPPs");
+
+            processConceptList(conceptCache.getTpps(), "TPP", processor, pool, order);
+            processConceptList(conceptCache.getMpps(), "MPP", processor, pool, order);
+            processConceptList(conceptCache.getTpuus(), "TPUU", processor, pool, order);
+            processConceptList(conceptCache.getMpuus(), "MPUU", processor, pool, order);
+            processConceptList(conceptCache.getMps(), "MP", processor, pool, order);
+            processConceptList(conceptCache.getSubstances(), "Substance", processor, pool, order);
+        } finally {
+            pool.shutdownNow();
+        }
 
-        logger.info("Finished creating " + processedConcepts.size() + " resources");
+        logger.info("Finished creating " + getProcessedCount() + " resources");
     }
 
-    private void processConceptList(Map<Long, Concept> conceptList, String conceptType,
-            MedicationResourceProcessor processor)
+    /**
+     * Creates the resources for the concepts on the pool's threads. Each resource is claimed in processedConcepts by
+     * the thread that creates it, so concepts shared between packages are only created once. The resources created
+     * for each concept are handed back to this thread for the processor, so processors are only called from one
+     * thread. A resource is only given to the processor once the resources created for it have been, as they were
+     * when concepts were processed one at a time, whichever thread created them.
+     */
+    private void processConceptList(Collection<Concept> conceptList, String conceptType,
+            MedicationResourceProcessor processor, ForkJoinPool pool, HandOffOrder order)
             throws IOException {
         logger.info("Processing " + conceptList.size() + " " + conceptType + " concepts");
 
-        List<Resource> createdResources = new ArrayList<>();
-        int processedConceptsStartingSize = processedConcepts.size();
-        int counter = 0;
-        for (Concept concept : conceptCache.getCtpps().values()) {
-            counter++;
-            createdResources.clear();
-            if (!processedConcepts.contains(Long.toString(concept.getId()))) {
-                createPackageResource(concept, createdResources);
-                processor.processResources(createdResources);
+        int processedConceptsStartingSize = getProcessedCount();
+        AtomicInteger counter = new AtomicInteger();
+        AtomicBoolean aborted = new AtomicBoolean();
+        BlockingQueue<CreatedResources> handOff = new ArrayBlockingQueue<>(HAND_OFF_CAPACITY);
+
+        ForkJoinTask<?> task = pool.submit(() -> conceptList.parallelStream().forEach(concept -> {
+            if (!processedConcepts.contains(concept.getId())) {
+                CreatedResources createdResources = new CreatedResources();
+                createResource(concept, createdResources);
+                if (!createdResources.isEmpty()) {
+                    handOff(handOff, createdResources, aborted);
+                }
             }
-            if (counter % 1000 == 0) {
-                logger.info("Processed " + counter + " " + conceptType + "s...");
+            int count = counter.incrementAndGet();
+            if (count % 1000 == 0) {
+                logger.info("Processed " + count + " " + conceptType + "s...");
             }
+        }));
+
+        try {
+            while (!task.isDone() || !handOff.isEmpty()) {
+                CreatedResources createdResources = handOff.poll(100, TimeUnit.MILLISECONDS);
+                if (createdResources != null) {
+                    processResources(processor, order.release(createdResources));
+                }
+            }
+            task.join();
+            processResources(processor, order.releaseWaiting());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted processing " + conceptType + "s", e);
+        } finally {
+            aborted.set(true);
         }
 
         logger.info("Completed processing " + conceptList.size() + " " + conceptType + "s, added "
-                + (processedConcepts.size() - processedConceptsStartingSize) + " resources");
+                + (getProcessedCount() - processedConceptsStartingSize) + " resources");
+    }
+
+    private static void processResources(MedicationResourceProcessor processor, List<Resource> resources)
+            throws IOException {
+        if (!resources.isEmpty()) {
+            processor.processResources(resources);
+        }
+    }
+
+    private int getProcessedCount() {
+        return processedConcepts.size() + processedManufacturers.size();
+    }
+
+    private void handOff(BlockingQueue<CreatedResources> handOff, CreatedResources createdResources,
+            AtomicBoolean aborted) {
+        try {
+            while (!handOff.offer(createdResources, 100, TimeUnit.MILLISECONDS)) {
+                if (aborted.get()) {
+                    throw new CancellationException("Processing was aborted");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted handing off resources");
+        }
     }
 
-    private Reference createSubstanceResource(Concept concept, List<Resource> createdResources) {
+    private void createResource(Concept concept, CreatedResources createdResources) {
+        switch (concept.getAmtType()) {
+            case CTPP:
+            case TPP:
+            case MPP:
+                createPackageResource(concept, createdResources);
+                break;
+            case SUBSTANCE:
+                createSubstanceResource(concept, createdResources);
+                break;
+            default:
+                createProductResource(concept, createdResources);
+                break;
+        }
+    }
+
+    private Reference createSubstanceResource(Concept concept, CreatedResources createdResources) {
         Reference reference = toReference(concept, "Substance");
-        if (!processedConcepts.contains(Long.toString(concept.getId()))) {
-            processedConcepts.add(Long.toString(concept.getId()));
+        createdResources.dependsOn(reference.getReference());
+        if (processedConcepts.add(concept.getId())) {
+            createdResources.startBuilding(reference.getReference());
             ExtendedSubstance substance = new ExtendedSubstance();
             setStandardResourceElements(concept, substance);
-            substance.setSourceCodeSystem(
-                new SourceCodeSystemExtension(new UriType(FhirCodeSystemUri.SNOMED_CT_SYSTEM_URI.getUri()),
-                    new StringType(amtVersion)));
+            substance.setSourceCodeSystem(sourceCodeSystem);
             addHistoicalAssociations(concept, substance, "Substance");
 
             substance.setStatus(concept.isActive() ? FHIRSubstanceStatus.ACTIVE : FHIRSubstanceStatus.ENTEREDINERROR);
 
             substance.setCode(concept.toCodeableConcept());
             substance.setStatus(concept.isActive() ? FHIRSubstanceStatus.ACTIVE : FHIRSubstanceStatus.ENTEREDINERROR);
-            substance.setLastModified(new DateType(concept.getLastModified()));
+            substance.setLastModified(EffectiveTime.toDateType(concept.getLastModified()));
 
             concept.getMultipleDestinations(AttributeType.IS_MODIFICATION_OF)
                 .forEach(m -> substance.addIngredient().setSubstance(createSubstanceResource(m, createdResources)));
@@ -167,18 +308,17 @@ public class AmtMedicationResourceGenerator {
         return reference;
     }
 
-    private ExtendedMedication createBaseMedicationResource(Concept concept, List<Resource> createdResources) {
+    private ExtendedMedication createBaseMedicationResource(Concept concept, CreatedResources createdResources) {
         ExtendedMedication medication = new ExtendedMedication();
-        medication.setSourceCodeSystem(
-            new SourceCodeSystemExtension(new UriType(FhirCodeSystemUri.SNOMED_CT_SYSTEM_URI.getUri()),
-                new StringType(amtVersion)));
+        medication.setSourceCodeSystem(sourceCodeSystem);
         setStandardResourceElements(concept, medication);
 
         addHistoicalAssociations(concept, medication, "Medication");
 
-        medication.setLastModified(new DateType(concept.getLastModified()));
+        medication.setLastModified(EffectiveTime.toDateType(concept.getLastModified()));
 
-        medication.setCode(concept.toCodeableConcept());
+        // copied as the ARTG ids are added to it below and the concept's CodeableConcept is shared
+        medication.setCode(concept.toCodeableConcept().copy());
 
         medication.setStatus(concept.getStatus());
 
@@ -214,7 +354,7 @@ public class AmtMedicationResourceGenerator {
     }
 
     private void addGeneralizedMedicineExtensions(Concept concept, List<GeneralizedMedication> list,
-            List<Resource> createdResources) {
+            CreatedResources createdResources) {
         Concept c = concept;
 
         if (c.hasAtLeastOneMatchingAncestor(AmtConcept.CTPP)) {
@@ -241,7 +381,7 @@ public class AmtMedicationResourceGenerator {
     private void addHistoicalAssociations(Concept concept, ResourceWithHistoricalAssociations resource,
             String resourceType) {
         if (concept.getReplacementConcept() != null) {
-            for (ImmutableTriple<Long, Concept, Date> replacement : concept.getReplacementConcept()) {
+            for (ImmutableTriple<Long, Concept, Integer> replacement : concept.getReplacementConcept()) {
                 String targetResourceType = replacement.middle.getResourceType();
                 if (!targetResourceType.equals(resourceType)) {
                     logger.warning("AMT concept replacement " + replacement.middle + " for concept " + concept
@@ -249,12 +389,12 @@ public class AmtMedicationResourceGenerator {
                 }
                 resource.getReplacementResources()
                     .add(new IsReplacedByExtension(toReference(replacement.middle, targetResourceType),
-                        AmtConcept.fromId(replacement.left).toCoding(), new DateType(replacement.right)));
+                        AmtConcept.fromId(replacement.left).toCoding(), EffectiveTime.toDateType(replacement.right)));
             }
         }
 
         if (concept.getReplacedConcept() != null) {
-            for (ImmutableTriple<Long, Concept, Date> replaced : concept.getReplacedConcept()) {
+            for (ImmutableTriple<Long, Concept, Integer> replaced : concept.getReplacedConcept()) {
                 String targetResourceType = replaced.middle.getResourceType();
                 if (!targetResourceType.equals(resourceType)) {
                     logger.warning("AMT concept replacement " + concept + " for concept " + replaced.middle
@@ -262,7 +402,7 @@ public class AmtMedicationResourceGenerator {
                 }
                 resource.getReplacedResources()
                     .add(new ReplacesResourceExtension(toReference(replaced.middle, targetResourceType),
-                        AmtConcept.fromId(replaced.left).toCoding(), new DateType(replaced.right)));
+                        AmtConcept.fromId(replaced.left).toCoding(), EffectiveTime.toDateType(replaced.right)));
             }
         }
     }
@@ -276,9 +416,8 @@ public class AmtMedicationResourceGenerator {
     }
 
     private void addParentExtensions(Concept concept, ParentExtendedElement element, Set<Long> addedConcepts,
-            List<Resource> createdResources) {
+            CreatedResources createdResources) {
         concept.getParents()
-            .values()
             .stream()
             .filter(parent -> !AmtConcept.isEnumValue(Long.toString(parent.getId())))
             .filter(parent -> !addedConcepts.contains(parent.getId()))
@@ -289,7 +428,7 @@ public class AmtMedicationResourceGenerator {
                     extension.setMedicationResourceType(parent.getMedicationType().getCode());
                     extension.setMedicationResourceStatus(
                         new Enumeration<MedicationStatus>(new MedicationStatusEnumFactory(), parent.getStatus()));
-                    extension.setLastModified(new DateType(parent.getLastModified()));
+                    extension.setLastModified(EffectiveTime.toDateType(parent.getLastModified()));
 
                     addHistoicalAssociations(concept, extension, "Medication");
 
@@ -314,10 +453,11 @@ public class AmtMedicationResourceGenerator {
             });
     }
 
-    private Reference createPackageResource(Concept concept, List<Resource> createdResources) {
+    private Reference createPackageResource(Concept concept, CreatedResources createdResources) {
         Reference reference = toExtendedMedicationReference(concept, createdResources);
-        if (!processedConcepts.contains(Long.toString(concept.getId()))) {
-            processedConcepts.add(Long.toString(concept.getId()));
+        createdResources.dependsOn(reference.getReference());
+        if (processedConcepts.add(concept.getId())) {
+            createdResources.startBuilding(reference.getReference());
             ExtendedMedication medication = createBaseMedicationResource(concept, createdResources);
             MedicationPackageComponent pkg = new MedicationPackageComponent();
             medication.setPackage(pkg);
@@ -341,7 +481,6 @@ public class AmtMedicationResourceGenerator {
 
             if (concept.hasParent(AmtConcept.CTPP)) {
                 concept.getParents()
-                    .values()
                     .stream()
                     .filter(c -> c.hasAtLeastOneMatchingAncestor(AmtConcept.TPP)
                             && !c.hasAtLeastOneMatchingAncestor(AmtConcept.CTPP))
@@ -359,11 +498,12 @@ public class AmtMedicationResourceGenerator {
         return reference;
     }
 
-    private Reference createOrganisation(List<Resource> createdResources, Manufacturer manufacturer) {
+    private Reference createOrganisation(CreatedResources createdResources, Manufacturer manufacturer) {
         Reference orgRef = new Reference("Organization/" + manufacturer.getCode());
         orgRef.setDisplay(manufacturer.getName());
-        if (!processedConcepts.contains(manufacturer.getCode())) {
-            processedConcepts.add(manufacturer.getCode());
+        createdResources.dependsOn(orgRef.getReference());
+        if (processedManufacturers.add(manufacturer.getCode())) {
+            createdResources.startBuilding(orgRef.getReference());
             Organization org = new Organization();
             org.setId(manufacturer.getCode());
             Narrative narrative = new Narrative();
@@ -391,44 +531,45 @@ public class AmtMedicationResourceGenerator {
         if (!medication.getSubsidies()
             .stream()
             .anyMatch(s -> s.getSubsidyCode().getCode().equals(subsidy.getPbsCode()))) {
+            medication.getSubsidies().add(subsidyExtensions.computeIfAbsent(subsidy, s -> createSubsidyExtension(s)));
+        }
+    }
 
-            SubsidyExtension subsidyExt = new SubsidyExtension();
-            subsidyExt
-                .setSubsidyCode(new Coding(FhirCodeSystemUri.PBS_SUBSIDY_URI.getUri(), subsidy.getPbsCode(), null));
-            subsidyExt.setProgramCode(new Coding(FhirCodeSystemUri.PBS_PROGRAM_URI.getUri(), subsidy.getProgramCode(),
-                PbsCodeSystemUtil.getProgramCodeDisplay(subsidy.getProgramCode())));
-            subsidyExt.setCommonwealthExManufacturerPrice(new DecimalType(subsidy.getCommExManPrice()));
-            subsidyExt.setManufacturerExManufacturerPrice(new DecimalType(subsidy.getManExManPrice()));
-            subsidyExt
-                .setRestriction(new Coding(FhirCodeSystemUri.PBS_RESTRICTION_URI.getUri(), subsidy.getRestriction(),
-                    PbsCodeSystemUtil.getRestrictionCodeDisplay(subsidy.getRestriction())));
-            for (String note : subsidy.getNotes()) {
-                subsidyExt.addNote(new Annotation(new StringType(note)));
-            }
-            for (String caution : subsidy.getCaution()) {
-                subsidyExt.addCautionaryNote(new Annotation(new StringType(caution)));
-            }
+    private SubsidyExtension createSubsidyExtension(Subsidy subsidy) {
+        SubsidyExtension subsidyExt = new SubsidyExtension();
+        subsidyExt
+            .setSubsidyCode(new Coding(FhirCodeSystemUri.PBS_SUBSIDY_URI.getUri(), subsidy.getPbsCode(), null));
+        subsidyExt.setProgramCode(new Coding(FhirCodeSystemUri.PBS_PROGRAM_URI.getUri(), subsidy.getProgramCode(),
+            PbsCodeSystemUtil.getProgramCodeDisplay(subsidy.getProgramCode())));
+        subsidyExt.setCommonwealthExManufacturerPrice(new DecimalType(subsidy.getCommExManPrice()));
+        subsidyExt.setManufacturerExManufacturerPrice(new DecimalType(subsidy.getManExManPrice()));
+        subsidyExt
+            .setRestriction(new Coding(FhirCodeSystemUri.PBS_RESTRICTION_URI.getUri(), subsidy.getRestriction(),
+                PbsCodeSystemUtil.getRestrictionCodeDisplay(subsidy.getRestriction())));
+        for (String note : subsidy.getNotes()) {
+            subsidyExt.addNote(new Annotation(new StringType(note)));
+        }
+        for (String caution : subsidy.getCaution()) {
+            subsidyExt.addCautionaryNote(new Annotation(new StringType(caution)));
+        }
 
-            for (Pair<String, String> atcCode : subsidy.getAtcCodes()) {
-                CodeableConcept coding = subsidyExt.getAtcCode();
-                if (coding == null) {
-                    coding = new CodeableConcept();
-                    subsidyExt.setAtcCode(coding);
-                }
-                Coding code = coding.addCoding();
-                code.setCode(atcCode.getLeft());
-                code.setDisplay(atcCode.getRight());
-                code.setSystem(FhirCodeSystemUri.ATC_URI.getUri());
+        for (Pair<String, String> atcCode : subsidy.getAtcCodes()) {
+            CodeableConcept coding = subsidyExt.getAtcCode();
+            if (coding == null) {
+                coding = new CodeableConcept();
+                subsidyExt.setAtcCode(coding);
             }
-
-            medication.getSubsidies().add(subsidyExt);
+            coding.addCoding(atcCodings.computeIfAbsent(atcCode.getLeft(),
+                code -> new Coding(FhirCodeSystemUri.ATC_URI.getUri(), code, atcCode.getRight())));
         }
+        return subsidyExt;
     }
 
-    private Reference createProductResource(Concept concept, List<Resource> createdResources) {
+    private Reference createProductResource(Concept concept, CreatedResources createdResources) {
         Reference reference = toExtendedMedicationReference(concept, createdResources);
-        if (!processedConcepts.contains(Long.toString(concept.getId()))) {
-            processedConcepts.add(Long.toString(concept.getId()));
+        createdResources.dependsOn(reference.getReference());
+        if (processedConcepts.add(concept.getId())) {
+            createdResources.startBuilding(reference.getReference());
             ExtendedMedication medication = createBaseMedicationResource(concept, createdResources);
             concept.getRelationshipGroupsContaining(AttributeType.HAS_INTENDED_ACTIVE_INGREDIENT).forEach(
                 r -> addIngredient(medication, r, createdResources));
@@ -444,7 +585,7 @@ public class AmtMedicationResourceGenerator {
     }
 
     private void addProductReference(MedicationPackageComponent pkg, Relationship relationship,
-            List<Resource> createdResources) {
+            CreatedResources createdResources) {
         MedicationPackageContentComponent content = pkg.addContent();
 
         Concept destination = null;
@@ -463,7 +604,7 @@ public class AmtMedicationResourceGenerator {
             Set<Concept> destinationSet =
                     ctpp.stream()
                         .flatMap(c -> conceptCache.getConcept(c).getRelationships(relationship.getType()).stream())
-                        .flatMap(r -> r.getDestination().getParents().values().stream())
+                        .flatMap(r -> r.getDestination().getParents().stream())
                         .filter(c -> c.hasParent(relationship.getDestination()))
                         .collect(Collectors.toSet());
 
@@ -505,7 +646,7 @@ public class AmtMedicationResourceGenerator {
     }
 
     private void addIngredient(Medication medication, Collection<Relationship> relationships,
-            List<Resource> createdResources) {
+            CreatedResources createdResources) {
         Relationship iai = relationships.stream()
             .filter(r -> r.getType().equals(AttributeType.HAS_INTENDED_ACTIVE_INGREDIENT))
             .findFirst()
@@ -554,32 +695,24 @@ public class AmtMedicationResourceGenerator {
     }
 
     private Reference toReference(Concept concept, String resourceType) {
-        Reference reference;
-
-        if (referenceCache.containsKey(concept.getId())) {
-            reference = referenceCache.get(concept.getId());
-        } else {
-            reference = new Reference(resourceType + "/" + concept.getId());
+        return referenceCache.computeIfAbsent(concept.getId(), id -> {
+            Reference reference = new Reference(resourceType + "/" + id);
             reference.setDisplay(concept.getPreferredTerm());
-            referenceCache.put(concept.getId(), reference);
-        }
-
-        return reference;
+            return reference;
+        });
     }
 
-    private ExtendedReference toExtendedMedicationReference(Concept concept, List<Resource> createdResources) {
-        ExtendedReference reference;
-        if (extendedReferenceCache.containsKey(concept.getId())) {
-            reference = extendedReferenceCache.get(concept.getId());
-        } else {
-            reference =
-                    new ExtendedReference("Medication/" + concept.getId());
+    private ExtendedReference toExtendedMedicationReference(Concept concept, CreatedResources createdResources) {
+        // built by one thread only, others asking for the same concept wait for it, so parent resources created
+        // while building it go to that thread's createdResources
+        return extendedReferenceCache.computeIfAbsent(concept.getId(), id -> {
+            ExtendedReference reference = new ExtendedReference("Medication/" + id);
             reference.setDisplay(concept.getPreferredTerm());
             addParentExtensions(concept, reference, new HashSet<>(), createdResources);
             reference.setMedicationResourceType(concept.getMedicationType().getCode());
             reference.setMedicationResourceStatus(
                 new Enumeration<MedicationStatus>(new MedicationStatusEnumFactory(), concept.getStatus()));
-            reference.setLastModified(new DateType(concept.getLastModified()));
+            reference.setLastModified(EffectiveTime.toDateType(concept.getLastModified()));
 
             addHistoicalAssociations(concept, reference, "Medication");
 
@@ -589,8 +722,131 @@ public class AmtMedicationResourceGenerator {
             if (brand != null) {
                 reference.setBrand(brand);
             }
-            extendedReferenceCache.put(concept.getId(), reference);
+            return reference;
+        });
+    }
+
+    /**
+     * The resources created for one concept in the order they were finished, each with the keys of the resources
+     * created for it, whether by this thread or another one that claimed them first
+     */
+    private static final class CreatedResources {
+        private final List<Resource> resources = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+        private final List<Set<String>> dependencies = new ArrayList<>();
+        /** keys and dependencies of the resources being built, innermost first */
+        private final Deque<String> buildingKeys = new ArrayDeque<>();
+        private final Deque<Set<String>> buildingDependencies = new ArrayDeque<>();
+
+        /**
+         * Records that the resource being built has to follow the resource with the key. Resources this thread is
+         * still building are left out, they are finished after it.
+         */
+        private void dependsOn(String key) {
+            if (!buildingDependencies.isEmpty() && !buildingKeys.contains(key)) {
+                buildingDependencies.peek().add(key);
+            }
+        }
+
+        private void startBuilding(String key) {
+            buildingKeys.push(key);
+            buildingDependencies.push(new HashSet<>());
+        }
+
+        private void add(Resource resource) {
+            resources.add(resource);
+            keys.add(buildingKeys.pop());
+            dependencies.add(buildingDependencies.pop());
+        }
+
+        private boolean isEmpty() {
+            return resources.isEmpty();
+        }
+    }
+
+    /**
+     * Holds back resources handed back from the pool until the resources they follow have been given to the
+     * processor, only used by the thread calling the processor
+     */
+    private static final class HandOffOrder {
+        /** keys of the resources given to the processor */
+        private final Set<String> released = new HashSet<>();
+        /** resources held back, by the key of each resource they are waiting for */
+        private final Map<String, List<WaitingResource>> waiting = new HashMap<>();
+        /** resources held back in the order they were handed back */
+        private final Set<WaitingResource> waitingInOrder = new LinkedHashSet<>();
+
+        /**
+         * @return the resources that can now be given to the processor, in the order to give them
+         */
+        private List<Resource> release(CreatedResources createdResources) {
+            List<Resource> ready = new ArrayList<>();
+            for (int i = 0; i < createdResources.resources.size(); i++) {
+                WaitingResource resource =
+                        new WaitingResource(createdResources.resources.get(i), createdResources.keys.get(i));
+                for (String dependency : createdResources.dependencies.get(i)) {
+                    if (!released.contains(dependency)) {
+                        waiting.computeIfAbsent(dependency, k -> new ArrayList<>()).add(resource);
+                        resource.waitingFor++;
+                    }
+                }
+                if (resource.waitingFor == 0) {
+                    release(resource, ready);
+                } else {
+                    waitingInOrder.add(resource);
+                }
+            }
+            return ready;
+        }
+
+        private void release(WaitingResource resource, List<Resource> ready) {
+            Deque<WaitingResource> releasing = new ArrayDeque<>();
+            releasing.add(resource);
+            while (!releasing.isEmpty()) {
+                WaitingResource next = releasing.poll();
+                ready.add(next.resource);
+                released.add(next.key);
+                List<WaitingResource> dependents = waiting.remove(next.key);
+                if (dependents != null) {
+                    for (WaitingResource dependent : dependents) {
+                        // resources released by releaseWaiting are no longer in waitingInOrder
+                        if (--dependent.waitingFor == 0 && waitingInOrder.remove(dependent)) {
+                            releasing.add(dependent);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Everything waited for has been handed back once a concept list is finished, unless concepts depend on each
+         * other in a cycle. Any resources still held back are then given to the processor in the order they were
+         * handed back rather than dropped.
+         */
+        private List<Resource> releaseWaiting() {
+            if (waitingInOrder.isEmpty()) {
+                return Collections.emptyList();
+            }
+            logger.warning(waitingInOrder.size() + " resources were still waiting for resources created for them");
+            List<Resource> ready = new ArrayList<>();
+            for (WaitingResource resource : new ArrayList<>(waitingInOrder)) {
+                if (waitingInOrder.remove(resource)) {
+                    release(resource, ready);
+                }
+            }
+            waiting.clear();
+            return ready;
+        }
+    }
+
+    private static final class WaitingResource {
+        private final Resource resource;
+        private final String key;
+        private int waitingFor;
+
+        private WaitingResource(Resource resource, String key) {
+            this.resource = resource;
+            this.key = key;
         }
-        return reference;
     }
 }
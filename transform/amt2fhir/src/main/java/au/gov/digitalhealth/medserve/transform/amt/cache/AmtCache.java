@@ -1,38 +1,47 @@
 package au.gov.digitalhealth.medserve.transform.amt.cache;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.Pair;
-import org.jgrapht.alg.TransitiveClosure;
-import org.jgrapht.graph.SimpleDirectedGraph;
 
 import au.gov.digitalhealth.medserve.transform.amt.enumeration.AmtConcept;
 import au.gov.digitalhealth.medserve.transform.amt.enumeration.AttributeType;
 import au.gov.digitalhealth.medserve.transform.amt.model.Concept;
 import au.gov.digitalhealth.medserve.transform.amt.model.DataTypeProperty;
+import au.gov.digitalhealth.medserve.transform.amt.model.EffectiveTime;
 import au.gov.digitalhealth.medserve.transform.amt.model.Manufacturer;
 import au.gov.digitalhealth.medserve.transform.amt.model.Relationship;
 import au.gov.digitalhealth.medserve.transform.amt.model.Subsidy;
+import au.gov.digitalhealth.medserve.transform.util.DelimitedRow;
 import au.gov.digitalhealth.medserve.transform.util.FileUtils;
+import au.gov.digitalhealth.medserve.transform.util.LongObjectMap;
 import au.gov.digitalhealth.medserve.transform.util.LoggingTimer;
 
 public class AmtCache {
 
-    private static final SimpleDateFormat effectiveTimeFormat = new SimpleDateFormat("yyyyMMdd");
+    private static final int LOADER_THREADS = 4;
+
+    private static final AttributeType[] ATTRIBUTE_TYPES = AttributeType.values();
 
     private static final String PREFERRED = "900000000000548007";
 
@@ -42,57 +51,101 @@ public class AmtCache {
 
     private static final Logger logger = Logger.getLogger(AmtCache.class.getCanonicalName());
 
-    private SimpleDirectedGraph<Long, Edge> graph = new SimpleDirectedGraph<>(Edge.class);
+    private ConceptHierarchy hierarchy = new ConceptHierarchy();
 
-    private Map<Long, Concept> conceptCache = new HashMap<>();
+    /**
+     * Concepts by id, the index of a concept in this map is its ordinal in the hierarchy and the other per concept
+     * arrays
+     */
+    private LongObjectMap<Concept> conceptCache = new LongObjectMap<>(1 << 16);
 
     private Set<Long> preferredDescriptionIdCache = new HashSet<>();
 
-    private Map<Long, Relationship> relationshipCache = new HashMap<>();
+    private LongObjectMap<Relationship> relationshipCache = new LongObjectMap<>(1 << 16);
 
-    private Map<Long, Concept> mps = new HashMap<>();
-    private Map<Long, Concept> mpuus = new HashMap<>();
-    private Map<Long, Concept> mpps = new HashMap<>();
-    private Map<Long, Concept> tpuus = new HashMap<>();
-    private Map<Long, Concept> tpps = new HashMap<>();
-    private Map<Long, Concept> ctpps = new HashMap<>();
-    private Map<Long, Concept> substances = new HashMap<>();
-    private Map<Long, Set<String>> artgIdCache = new HashMap<>();
+    private List<Concept> mps;
+    private List<Concept> mpuus;
+    private List<Concept> mpps;
+    private List<Concept> tpuus;
+    private List<Concept> tpps;
+    private List<Concept> ctpps;
+    private List<Concept> substances;
+    private Set<String>[] artgIdCache;
     private Map<String, Manufacturer> manufacturers = new HashMap<>();
     private Map<String, Collection<Subsidy>> subsidies = new HashMap<>();
     private Map<String, Set<Concept>> pbscache = new HashMap<>();
     private Map<String, String> atcCodes = new HashMap<>();
     private Map<String, String> caution = new HashMap<>();
     private Map<String, String> notes = new HashMap<>();
-    private Map<Long, Date> relationshipDateCache = new HashMap<>();
+    /** latest relationship effective time of each inactive concept by ordinal, 0 if it has none */
+    private int[] relationshipTimeCache;
+    private RelationshipRows inactiveConceptRelationships = new RelationshipRows();
 
     public AmtCache(FileSystem amtZip, FileSystem pbsExtract) throws IOException {
-        processAmtFiles(amtZip);
+        this(amtZip, pbsExtract, null);
+    }
+
+    /**
+     * @param snapshot file holding a snapshot of the AMT release, which is read instead of the release if it exists
+     *            and written after loading the release if it doesn't, or null to always load the release
+     */
+    public AmtCache(FileSystem amtZip, FileSystem pbsExtract, Path snapshot) throws IOException {
+        if (snapshot == null || !readSnapshot(snapshot)) {
+            processAmtFiles(amtZip);
+            if (snapshot != null) {
+                writeSnapshot(snapshot);
+            }
+        }
+        indexConcepts();
         if (pbsExtract != null) {
             processPbsFiles(pbsExtract);
         }
     }
 
+    /**
+     * Reads the PBS extract on a pool of threads, each file is only read once the files it depends on are loaded
+     * <ul>
+     * <li>the manufacturer, note, caution and ATC lookup files first, they depend on nothing</li>
+     * <li>the AMT file, which creates the subsidies and spreads them to the descendants of each TPP, once the
+     * manufacturers are loaded</li>
+     * <li>the drug file once the subsidies and ATC codes are loaded, and at the same time the link file once the
+     * subsidies, notes and cautions are loaded - they fill in different parts of the subsidies</li>
+     * </ul>
+     */
     private void processPbsFiles(FileSystem pbsExtract) throws IOException {
         PbsFileVisitor visitor = new PbsFileVisitor();
 
         Files.walkFileTree(pbsExtract.getPath("/"), visitor);
 
-        FileUtils.readFile(visitor.getManufacturerFile(), s -> handleManufacturerFile(s), false, "!");
-        FileUtils.readFile(visitor.getNoteFile(), s -> handleNoteFile(s), false, "\t");
-        FileUtils.readFile(visitor.getCautionFile(), s -> handleCautionFile(s), false, "\t");
-        FileUtils.readFile(visitor.getAtcFile(), s -> handleAtcFile(s), false, "!");
-        FileUtils.readFile(visitor.getAmtFile(), s -> handlePbsAmtFile(s), false, "!");
-        FileUtils.readFile(visitor.getDrugFile(), s -> handlePbsDrugFile(s), false, "!");
-        FileUtils.readFile(visitor.getIndicationFile(), s -> handleLinkFile(s), false, "\t");
+        ExecutorService executor = Executors.newFixedThreadPool(LOADER_THREADS);
+        try (LoggingTimer l = new LoggingTimer(logger, "load PBS extract")) {
+            CompletableFuture<Void> manufacturers =
+                    read(executor, visitor.getManufacturerFile(), false, '!', s -> handleManufacturerRow(s));
+            CompletableFuture<Void> notes =
+                    read(executor, visitor.getNoteFile(), false, '\t', s -> handleNoteRow(s));
+            CompletableFuture<Void> cautions =
+                    read(executor, visitor.getCautionFile(), false, '\t', s -> handleCautionRow(s));
+            CompletableFuture<Void> atcCodes =
+                    read(executor, visitor.getAtcFile(), false, '!', s -> handleAtcRow(s));
+
+            CompletableFuture<Void> pbsAmt = manufacturers.thenComposeAsync(
+                v -> read(executor, visitor.getAmtFile(), false, '!', s -> handlePbsAmtRow(s)), executor);
+            CompletableFuture<Void> drugs = CompletableFuture.allOf(pbsAmt, atcCodes).thenComposeAsync(
+                v -> read(executor, visitor.getDrugFile(), false, '!', s -> handlePbsDrugRow(s)), executor);
+            CompletableFuture<Void> links = CompletableFuture.allOf(pbsAmt, notes, cautions).thenComposeAsync(
+                v -> read(executor, visitor.getIndicationFile(), false, '\t', s -> handleLinkRow(s)), executor);
+
+            join(CompletableFuture.allOf(drugs, links));
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    private void handleLinkFile(String[] s) {
-        String pbsCode = s[0];
-        Collection<Subsidy> list = subsidies.get(pbsCode);
+    private void handleLinkRow(DelimitedRow row) {
+        Collection<Subsidy> list = subsidies.get(row.getString(0));
         if (list != null) {
-            String noteId = s[5];
-            String cautionId = s[6];
+            String noteId = row.getString(5);
+            String cautionId = row.getString(6);
 
             for (Subsidy subsidy : list) {
                 subsidy.addNote(notes.get(noteId));
@@ -102,77 +155,72 @@ public class AmtCache {
 
     }
 
-    private void handleCautionFile(String[] s) {
-        this.caution.put(s[0], s[1]);
+    private void handleCautionRow(DelimitedRow row) {
+        this.caution.put(row.getString(0), row.getString(1));
     }
 
-    private void handleNoteFile(String[] s) {
-        this.notes.put(s[0], s[1]);
+    private void handleNoteRow(DelimitedRow row) {
+        this.notes.put(row.getString(0), row.getString(1));
     }
 
-    private void handleAtcFile(String[] s) {
-        atcCodes.put(s[0], s[1]);
+    private void handleAtcRow(DelimitedRow row) {
+        atcCodes.put(row.getString(0), row.getString(1));
     }
 
-    private void handlePbsDrugFile(String[] s) {
-        String pbsCode = s[4];
-        Collection<Subsidy> list = subsidies.get(pbsCode);
+    private void handlePbsDrugRow(DelimitedRow row) {
+        Collection<Subsidy> list = subsidies.get(row.getString(4));
         if (list != null) {
+            String restriction = row.getString(5);
+            String atcCode = row.getString(1);
             for (Subsidy subsidy : list) {
-                subsidy.setRestriction(s[5]);
-                subsidy.addAtcCode(Pair.of(s[1], atcCodes.get(s[1])));
+                subsidy.setRestriction(restriction);
+                subsidy.addAtcCode(Pair.of(atcCode, atcCodes.get(atcCode)));
             }
         }
     }
 
-    private void handleManufacturerFile(String[] s) {
-        manufacturers.put(s[0],
-            new Manufacturer(s[0], s[1], s[2], s.length == 4 ? s[3] : null, s.length == 5 ? s[4] : null));
+    private void handleManufacturerRow(DelimitedRow row) {
+        String code = row.getString(0);
+        manufacturers.put(code, new Manufacturer(code, row.getString(1), row.getString(2),
+            row.size() == 4 ? row.getString(3) : null, row.size() == 5 ? row.getString(4) : null));
     }
 
-    private void handlePbsAmtFile(String[] row) {
-        String programCode = row[0];
-        String pbsCode = row[1];
-        String manufacturerCode = row[2];
-        long tppId = Long.parseLong(row[9]);
-        Long mppId = null;
-        if (!row[6].isEmpty()) {
-            mppId = Long.parseLong(row[6]);
-        }
-        String commExManPrice = row[13];
-        String manExManPrice = row[14];
+    /**
+     * Adds the subsidy to the TPP and the concepts descending from it, and indexes them and the MPP and its
+     * descendants by PBS code. Descendants come straight from the transitive closure.
+     */
+    private void handlePbsAmtRow(DelimitedRow row) {
+        String pbsCode = row.getString(1);
+        long tppId = row.getLong(9);
         Concept tpp = conceptCache.get(tppId);
         if (tpp == null) {
             logger.warning("No such TPP " + tppId + " for PBS code " + pbsCode);
         } else {
-            Subsidy subsidy = new Subsidy(pbsCode, programCode, commExManPrice, manExManPrice);
+            Subsidy subsidy = new Subsidy(pbsCode, row.getString(0), row.getString(13), row.getString(14));
+            Manufacturer manufacturer = manufacturers.get(row.getString(2));
             addSubsidyToCache(subsidy);
             tpp.addSubsidy(subsidy);
             addToPbsCache(pbsCode, tpp);
 
-            tpp.setManufacturer(manufacturers.get(manufacturerCode));
-            graph.incomingEdgesOf(tpp.getId())
-                .stream()
-                .map(e -> e.getSource())
-                .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)) && id != tpp.getId())
-                .forEach(id -> {
-                    Concept concept = conceptCache.get(id);
-                    concept.setManufacturer(manufacturers.get(manufacturerCode));
+            tpp.setManufacturer(manufacturer);
+            for (int ordinal : hierarchy.getDescendants(getOrdinal(tppId))) {
+                Concept concept = conceptCache.valueAt(ordinal);
+                if (!AmtConcept.isEnumValue(concept.getId())) {
+                    concept.setManufacturer(manufacturer);
                     concept.addSubsidy(subsidy);
                     addToPbsCache(pbsCode, concept);
-                });
-            if (mppId != null) {
-                long mpp = mppId.longValue();
+                }
+            }
+            if (!row.isEmpty(6)) {
+                long mppId = row.getLong(6);
                 addToPbsCache(pbsCode, conceptCache.get(mppId));
 
-                graph.incomingEdgesOf(mppId)
-                    .stream()
-                    .map(e -> e.getSource())
-                    .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)) && id != mpp)
-                    .forEach(id -> {
-                        Concept concept = conceptCache.get(id);
+                for (int ordinal : hierarchy.getDescendants(getOrdinal(mppId))) {
+                    Concept concept = conceptCache.valueAt(ordinal);
+                    if (!AmtConcept.isEnumValue(concept.getId())) {
                         addToPbsCache(pbsCode, concept);
-                    });
+                    }
+                }
             }
         }
 
@@ -201,233 +249,354 @@ public class AmtCache {
 
         Files.walkFileTree(amtZip.getPath("/"), visitor);
 
-        FileUtils.readFile(visitor.getConceptFile(), s -> handleConceptRow(s), true, "\t");
-        FileUtils.readFile(visitor.getRelationshipFile(), s -> buildLastRelationshipDateCache(s), true, "\t");
-        FileUtils.readFile(visitor.getRelationshipFile(), s -> handleRelationshipRow(s), true, "\t");
-        FileUtils.readFile(visitor.getLanguageRefsetFile(), s -> handleLanguageRefsetRow(s), true, "\t");
-        FileUtils.readFile(visitor.getDescriptionFile(), s -> handleDescriptionRow(s), true, "\t");
-        FileUtils.readFile(visitor.getArtgIdRefsetFile(), s -> handleArtgIdRefsetRow(s), true, "\t");
-        FileUtils.readFile(visitor.getAssociationRefsetFile(), s -> handleAssociationRefsetRow(s), true, "\t");
+        loadAmtFiles(visitor);
 
-        for (Path file : visitor.getDatatypePropertyFiles()) {
-            FileUtils.readFile(file, s -> handleDatatypeRefsetRow(s), true, "\t");
-        }
+        conceptCache.values().forEach(Concept::freeze);
 
         calculateTransitiveClosure();
+    }
+
+    private boolean readSnapshot(Path snapshot) {
+        if (!Files.exists(snapshot)) {
+            return false;
+        }
+        try (LoggingTimer l = new LoggingTimer(logger, "read AMT snapshot " + snapshot)) {
+            AmtCacheSnapshot contents = AmtCacheSnapshot.read(snapshot);
+            conceptCache = contents.getConcepts();
+            hierarchy = contents.getHierarchy();
+            artgIdCache = contents.getArtgIds();
+            conceptCache.values().forEach(Concept::freeze);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read AMT snapshot " + snapshot + ", loading the release instead", e);
+            return false;
+        }
+    }
+
+    private void writeSnapshot(Path snapshot) {
+        try (LoggingTimer l = new LoggingTimer(logger, "write AMT snapshot " + snapshot)) {
+            new AmtCacheSnapshot(conceptCache, hierarchy, artgIdCache).write(snapshot);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot write AMT snapshot " + snapshot, e);
+        }
+    }
+
+    /**
+     * Builds the lists of concepts of each type and the per concept data derived from the transitive closure
+     */
+    private void indexConcepts() {
+        ctpps = getConceptsOfType(AmtConcept.CTPP);
+        tpps = getConceptsOfType(AmtConcept.TPP, AmtConcept.CTPP);
+        mpps = getConceptsOfType(AmtConcept.MPP, AmtConcept.TPP, AmtConcept.CTPP);
+        tpuus = getConceptsOfType(AmtConcept.TPUU);
+        mpuus = getConceptsOfType(AmtConcept.MPUU, AmtConcept.TPUU);
+        mps = getConceptsOfType(AmtConcept.MP, AmtConcept.TPUU, AmtConcept.MPUU);
+        substances = getConceptsOfType(AmtConcept.SUBSTANCE);
+
+        for (int ordinal = 0; ordinal < conceptCache.size(); ordinal++) {
+            int[] ancestors = hierarchy.getAncestors(ordinal);
+            Concept[] ancestorConcepts = new Concept[ancestors.length];
+            for (int i = 0; i < ancestors.length; i++) {
+                ancestorConcepts[i] = conceptCache.valueAt(ancestors[i]);
+            }
+            conceptCache.valueAt(ordinal).setAncestors(Arrays.asList(ancestorConcepts));
+        }
 
-        graph.incomingEdgesOf(AmtConcept.CTPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> ctpps.put(id, conceptCache.get(id)));
-
-        graph.incomingEdgesOf(AmtConcept.TPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !ctpps.keySet().contains(id))
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> tpps.put(id, conceptCache.get(id)));
-
-        graph.incomingEdgesOf(AmtConcept.MPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !tpps.keySet().contains(id))
-            .filter(id -> !ctpps.keySet().contains(id))
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> mpps.put(id, conceptCache.get(id)));
-
-        graph.incomingEdgesOf(AmtConcept.TPUU.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> tpuus.put(id, conceptCache.get(id)));
-
-        graph.incomingEdgesOf(AmtConcept.MPUU.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !tpuus.keySet().contains(id))
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> mpuus.put(id, conceptCache.get(id)));
-
-        graph.incomingEdgesOf(AmtConcept.MP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !tpuus.keySet().contains(id))
-            .filter(id -> !mpuus.keySet().contains(id))
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> mps.put(id, conceptCache.get(id)));
-
-        graph.incomingEdgesOf(AmtConcept.SUBSTANCE.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> substances.put(id, conceptCache.get(id)));
-
-        conceptCache.values().stream().forEach(c -> {
-            c.addAncestors(
-                graph.outgoingEdgesOf(c.getId())
-                    .stream()
-                    .map(e -> e.getTarget())
-                    .collect(Collectors.<Long, Long, Concept> toMap(id -> id, id -> conceptCache.get(id))));
-        });
+        classifyConcepts();
 
         logger.info("Loaded " + ctpps.size() + " CTPPs " + tpps.size() + " TPPs " + mpps.size() + " MPPs "
                 + tpuus.size() + " TPUUs " + mpuus.size() + " MPUUs " + mps.size() + " MPs " + substances.size()
                 + " Substances");
     }
 
-    public Map<Long, Concept> getMps() {
+    /**
+     * Records the AMT types each concept is a descendant of, then the leaf ancestors worked out from them
+     */
+    private void classifyConcepts() {
+        try (LoggingTimer l = new LoggingTimer(logger, "classify concepts")) {
+            for (AmtConcept type : AmtConcept.values()) {
+                int typeOrdinal = conceptCache.indexOf(type.getId());
+                if (typeOrdinal != LongObjectMap.NOT_FOUND) {
+                    for (int ordinal : hierarchy.getDescendants(typeOrdinal)) {
+                        conceptCache.valueAt(ordinal).addAmtType(type);
+                    }
+                }
+            }
+            conceptCache.values().parallelStream().forEach(Concept::calculateLeafAncestors);
+        }
+    }
+
+    /**
+     * @return descendants of the type that aren't descendants of any of the excluded types, in ordinal order and
+     *         without the AMT enumeration concepts
+     */
+    private List<Concept> getConceptsOfType(AmtConcept type, AmtConcept... excludedTypes) {
+        int[] excluded = new int[excludedTypes.length];
+        for (int i = 0; i < excludedTypes.length; i++) {
+            excluded[i] = getOrdinal(excludedTypes[i].getId());
+        }
+
+        List<Concept> result = new ArrayList<>();
+        for (int ordinal : hierarchy.getDescendants(getOrdinal(type.getId()))) {
+            Concept concept = conceptCache.valueAt(ordinal);
+            if (!AmtConcept.isEnumValue(concept.getId()) && !isDescendantOfAny(ordinal, excluded)) {
+                result.add(concept);
+            }
+        }
+        return result;
+    }
+
+    private boolean isDescendantOfAny(int ordinal, int[] ancestors) {
+        for (int ancestor : ancestors) {
+            if (hierarchy.isDescendantOf(ordinal, ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getOrdinal(long id) {
+        int ordinal = conceptCache.indexOf(id);
+        if (ordinal == LongObjectMap.NOT_FOUND) {
+            throw new IllegalArgumentException("No concept " + id);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Reads the release files on a pool of threads, each file is only read once the files it depends on are loaded
+     * <ul>
+     * <li>concepts and the language refset first, they depend on nothing</li>
+     * <li>relationships (in a single pass), descriptions, ARTG ids and associations once the concepts are loaded, descriptions also
+     * wait for the language refset</li>
+     * <li>datatype properties once the relationships are loaded</li>
+     * </ul>
+     * Concepts are only modified by one of these tasks at a time except for their last modified date, which is
+     * updated under the concept's lock.
+     */
+    private void loadAmtFiles(TerminologyFileVisitor visitor) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(LOADER_THREADS);
+        try (LoggingTimer l = new LoggingTimer(logger, "load AMT release files")) {
+            CompletableFuture<Void> concepts =
+                    read(executor, visitor.getConceptFile(), s -> handleConceptRow(s))
+                        .thenRun(() -> createConceptArrays());
+            CompletableFuture<Void> language =
+                    read(executor, visitor.getLanguageRefsetFile(), s -> handleLanguageRefsetRow(s));
+
+            CompletableFuture<Void> relationships = concepts
+                .thenComposeAsync(v -> read(executor, visitor.getRelationshipFile(), s -> handleRelationshipRow(s)),
+                    executor)
+                .thenRun(() -> addInactiveConceptRelationships());
+            CompletableFuture<Void> descriptions = CompletableFuture.allOf(concepts, language)
+                .thenComposeAsync(v -> read(executor, visitor.getDescriptionFile(), s -> handleDescriptionRow(s)),
+                    executor);
+            CompletableFuture<Void> artgIds = concepts.thenComposeAsync(
+                v -> read(executor, visitor.getArtgIdRefsetFile(), s -> handleArtgIdRefsetRow(s)), executor);
+            CompletableFuture<Void> associations = concepts.thenComposeAsync(
+                v -> read(executor, visitor.getAssociationRefsetFile(), s -> handleAssociationRefsetRow(s)),
+                executor);
+
+            CompletableFuture<Void> datatypeProperties = relationships;
+            for (Path file : visitor.getDatatypePropertyFiles()) {
+                datatypeProperties = datatypeProperties
+                    .thenComposeAsync(v -> read(executor, file, s -> handleDatatypeRefsetRow(s)), executor);
+            }
+
+            join(CompletableFuture.allOf(descriptions, artgIds, associations, datatypeProperties));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void join(CompletableFuture<Void> files) throws IOException {
+        try {
+            files.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Void> read(ExecutorService executor, Path file, Consumer<DelimitedRow> consumer) {
+        return read(executor, file, true, '\t', consumer);
+    }
+
+    private CompletableFuture<Void> read(ExecutorService executor, Path file, boolean hasHeader, char delimiter,
+            Consumer<DelimitedRow> consumer) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                FileUtils.readFile(file, consumer, hasHeader, delimiter);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed reading " + file, e);
+            }
+        }, executor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createConceptArrays() {
+        artgIdCache = new Set[conceptCache.size()];
+        relationshipTimeCache = new int[conceptCache.size()];
+    }
+
+    public List<Concept> getMps() {
         return mps;
     }
 
-    public Map<Long, Concept> getMpuus() {
+    public List<Concept> getMpuus() {
         return mpuus;
     }
 
-    public Map<Long, Concept> getMpps() {
+    public List<Concept> getMpps() {
         return mpps;
     }
 
-    public Map<Long, Concept> getTpuus() {
+    public List<Concept> getTpuus() {
         return tpuus;
     }
 
-    public Map<Long, Concept> getTpps() {
+    public List<Concept> getTpps() {
         return tpps;
     }
 
-    public Map<Long, Concept> getCtpps() {
+    public List<Concept> getCtpps() {
         return ctpps;
     }
 
-    private void handleConceptRow(String[] row) {
+    private void handleConceptRow(DelimitedRow row) {
         if (isAmtModule(row)) {
-            long conceptId = Long.parseLong(row[0]);
-            graph.addVertex(conceptId);
-            conceptCache.put(conceptId, new Concept(conceptId, isActive(row), parseDate(row[1])));
+            long conceptId = row.getLong(0);
+            conceptCache.put(conceptId, new Concept(conceptId, isActive(row), parseEffectiveTime(row)));
         }
     }
 
-    private synchronized Date parseDate(String string) {
+    /**
+     * @return the day key of the row's effective time, see {@link EffectiveTime}
+     */
+    private int parseEffectiveTime(DelimitedRow row) {
         try {
-            return effectiveTimeFormat.parse(string);
-        } catch (ParseException e) {
-            throw new RuntimeException("Cannot parse effective time " + string, e);
+            return EffectiveTime.valueOf(row.getInt(1));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Cannot parse effective time " + row.getString(1), e);
         }
     }
 
-    private void buildLastRelationshipDateCache(String[] row) {
-        long source = Long.parseLong(row[4]);
-        long destination = Long.parseLong(row[5]);
-        Date effectiveTime = parseDate(row[1]);
-        Concept sourceConcept = conceptCache.get(source);
+    /**
+     * Adds active relationships of active concepts straight away. Relationships of inactive concepts are kept only
+     * if they are active or from the concept's latest effective time, which isn't known until the whole file has
+     * been read, so they are buffered and added by {@link #addInactiveConceptRelationships()}.
+     */
+    private void handleRelationshipRow(DelimitedRow row) {
+        int source = conceptCache.indexOf(row.getLong(4));
+        int destination = conceptCache.indexOf(row.getLong(5));
 
-        if (isAmtModule(row) && AttributeType.isEnumValue(row[7]) && graph.containsVertex(source)
-                && graph.containsVertex(destination) && !sourceConcept.isActive()) {
+        if (isAmtModule(row) && AttributeType.isEnumValue(row.getLong(7)) && source != LongObjectMap.NOT_FOUND
+                && destination != LongObjectMap.NOT_FOUND) {
+            int effectiveTime = parseEffectiveTime(row);
+            AttributeType type = AttributeType.fromId(row.getLong(7));
 
-            if (!relationshipDateCache.containsKey(source) || relationshipDateCache.get(source).before(effectiveTime)) {
-                relationshipDateCache.put(source, effectiveTime);
+            if (conceptCache.valueAt(source).isActive()) {
+                if (isActive(row)) {
+                    addRelationship(row.getLong(0), source, destination, type, row.getInt(6), true, effectiveTime);
+                }
+            } else {
+                if (relationshipTimeCache[source] < effectiveTime) {
+                    relationshipTimeCache[source] = effectiveTime;
+                }
+                inactiveConceptRelationships.add(row.getLong(0), source, destination, type,
+                    row.getInt(6), isActive(row), effectiveTime);
             }
         }
     }
 
-    private void handleRelationshipRow(String[] row) {
-        long source = Long.parseLong(row[4]);
-        long destination = Long.parseLong(row[5]);
-        Concept sourceConcept = conceptCache.get(source);
-        Date effectiveTime = parseDate(row[1]);
-
-        if (isAmtModule(row) && AttributeType.isEnumValue(row[7]) && graph.containsVertex(source)
-                && graph.containsVertex(destination)
-                && (isActive(row) || (!sourceConcept.isActive()
-                        && effectiveTime.equals(relationshipDateCache.get(source))))) {
-            
-            AttributeType type = AttributeType.fromIdString(row[7]);
-            Concept destinationConcept = conceptCache.get(destination);
-
-            if (type.equals(AttributeType.IS_A)) {
-                graph.addEdge(source, destination);
-                sourceConcept.addParent(destinationConcept);
-            } else {
-                long groupId = Integer.parseInt(row[6]);
-                if (groupId == 0) {
-                    groupId = type.getId() + destinationConcept.getId() << 32;
-                }
-                Map<Long, Set<Relationship>> relationshipGroups = sourceConcept.getRelationshipGroups();
-                if (!relationshipGroups.containsKey(groupId)) {
-                    relationshipGroups.put(groupId, new HashSet<Relationship>());
-                }
-                Relationship relationship =
-                        new Relationship(sourceConcept, destinationConcept, type, isActive(row), effectiveTime);
-                relationshipGroups.get(groupId).add(relationship);
-                relationshipCache.put(Long.parseLong(row[0]), relationship);
+    private void addInactiveConceptRelationships() {
+        RelationshipRows rows = inactiveConceptRelationships;
+        for (int i = 0; i < rows.size; i++) {
+            if (rows.active[i] || rows.effectiveTime[i] == relationshipTimeCache[rows.source[i]]) {
+                addRelationship(rows.id[i], rows.source[i], rows.destination[i], ATTRIBUTE_TYPES[rows.type[i]],
+                    rows.group[i], rows.active[i], rows.effectiveTime[i]);
             }
-            sourceConcept.updateLastModified(effectiveTime);
         }
+        inactiveConceptRelationships = null;
     }
 
-    private void handleDescriptionRow(String[] row) {
-        Long conceptId = Long.parseLong(row[4]);
-        Date effectiveTime = parseDate(row[1]);
+    private void addRelationship(long id, int source, int destination, AttributeType type, int group,
+            boolean active, int effectiveTime) {
+        Concept sourceConcept = conceptCache.valueAt(source);
+        Concept destinationConcept = conceptCache.valueAt(destination);
+        if (type.equals(AttributeType.IS_A)) {
+            hierarchy.addIsA(source, destination);
+            sourceConcept.addParent(destinationConcept);
+        } else {
+            long groupId = group;
+            if (groupId == 0) {
+                groupId = type.getId() + destinationConcept.getId() << 32;
+            }
+            Relationship relationship = new Relationship(sourceConcept, destinationConcept, type, active, effectiveTime);
+            sourceConcept.addRelationship(groupId, relationship);
+            relationshipCache.put(id, relationship);
+        }
+        sourceConcept.updateLastModified(effectiveTime);
+    }
 
+    private void handleDescriptionRow(DelimitedRow row) {
+        long conceptId = row.getLong(4);
         if (isActive(row) && isAmtModule(row) && conceptCache.containsKey(conceptId)) {
-            String descriptionId = row[0];
-            String term = row[7];
+            int effectiveTime = parseEffectiveTime(row);
             Concept concept = conceptCache.get(conceptId);
-            if (row[6].equals(FSN)) {
-                concept.setFullSpecifiedName(term);
-            } else if (preferredDescriptionIdCache.contains(Long.parseLong(descriptionId))) {
-                concept.setPreferredTerm(term);
+            if (row.equals(6, FSN)) {
+                concept.setFullSpecifiedName(row.getString(7));
+            } else if (preferredDescriptionIdCache.contains(row.getLong(0))) {
+                concept.setPreferredTerm(row.getString(7));
             }
 
             concept.updateLastModified(effectiveTime);
         }
     }
 
-    private void handleLanguageRefsetRow(String[] row) {
-        if (isActive(row) && isAmtModule(row) && row[6].equals(PREFERRED)) {
-            preferredDescriptionIdCache.add(Long.parseLong(row[5]));
+    private void handleLanguageRefsetRow(DelimitedRow row) {
+        if (isActive(row) && isAmtModule(row) && row.equals(6, PREFERRED)) {
+            preferredDescriptionIdCache.add(row.getLong(5));
         }
     }
 
-    private void handleDatatypeRefsetRow(String[] row) {
-        if (isAmtModule(row) && relationshipCache.containsKey(Long.parseLong(row[5]))) {
-            Relationship relationship = relationshipCache.get(Long.parseLong(row[5]));
-            Date effectiveTime = parseDate(row[1]);
+    private void handleDatatypeRefsetRow(DelimitedRow row) {
+        if (isAmtModule(row) && relationshipCache.containsKey(row.getLong(5))) {
+            Relationship relationship = relationshipCache.get(row.getLong(5));
+            int effectiveTime = parseEffectiveTime(row);
 
             if ((relationship.isActive() && isActive(row))
                     || (!relationship.isActive() && !isActive(row)
-                            && relationshipDateCache.get(relationship.getSource().getId()).equals(effectiveTime)
-                            && relationship.getEffectiveTime().equals(effectiveTime))) {
-                long unitId = Long.parseLong(row[6]);
-                relationship.setDatatypeProperty(new DataTypeProperty(row[8], conceptCache.get(unitId),
-                    AttributeType.fromIdString(row[4])));
+                            && relationshipTimeCache[getOrdinal(relationship.getSource().getId())] == effectiveTime
+                            && relationship.getEffectiveTime() == effectiveTime)) {
+                long unitId = row.getLong(6);
+                relationship.setDatatypeProperty(new DataTypeProperty(row.getString(8), conceptCache.get(unitId),
+                    AttributeType.fromId(row.getLong(4))));
                 relationship.getSource().updateLastModified(effectiveTime);
             }
         }
     }
 
-    private void handleArtgIdRefsetRow(String[] row) {
-        long conceptId = Long.parseLong(row[5]);
+    private void handleArtgIdRefsetRow(DelimitedRow row) {
+        long conceptId = row.getLong(5);
         Concept concept = conceptCache.get(conceptId);
         if ((isActive(row) || !concept.isActive()) && isAmtModule(row)) {
-
-            Set<String> artgIds = artgIdCache.get(conceptId);
-            if (artgIds == null) {
-                artgIds = new HashSet<>();
+            int ordinal = getOrdinal(conceptId);
+            if (artgIdCache[ordinal] == null) {
+                artgIdCache[ordinal] = new HashSet<>();
             }
-            artgIds.add(row[6]);
-            artgIdCache.put(conceptId, artgIds);
-            concept.updateLastModified(parseDate(row[1]));
+            artgIdCache[ordinal].add(row.getString(6));
+            concept.updateLastModified(parseEffectiveTime(row));
         }
     }
 
-    private void handleAssociationRefsetRow(String[] row) {
-        Concept source = conceptCache.get(Long.parseLong(row[5]));
-        Concept target = conceptCache.get(Long.parseLong(row[6]));
+    private void handleAssociationRefsetRow(DelimitedRow row) {
+        Concept source = conceptCache.get(row.getLong(5));
+        Concept target = conceptCache.get(row.getLong(6));
         if (isActive(row) && isAmtModule(row) && source != null && target != null) {
-            long type = Long.parseLong(row[4]);
-            Date effectiveTime = parseDate(row[1]);
+            long type = row.getLong(4);
+            int effectiveTime = parseEffectiveTime(row);
 
             source.addReplacementConcept(type, target, effectiveTime);
             target.addReplacedConcept(type, source, effectiveTime);
@@ -438,44 +607,78 @@ public class AmtCache {
 
     private void calculateTransitiveClosure() {
         try (LoggingTimer l = new LoggingTimer(logger, "calculate transitive closure")) {
-            TransitiveClosure.INSTANCE.closeSimpleDirectedGraph(graph);
+            hierarchy.close(conceptCache.size());
         }
     }
 
-    private boolean isActive(String[] row) {
-        return row[2].equals("1");
+    private boolean isActive(DelimitedRow row) {
+        return row.equals(2, "1");
     }
 
-    private boolean isAmtModule(String[] row) {
-        return row[3].equals(AMT_MODULE_ID);
+    private boolean isAmtModule(DelimitedRow row) {
+        return row.equals(3, AMT_MODULE_ID);
     }
 
     public Collection<Long> getDescendantOf(Long... id) {
-        Set<Long> result = graph.incomingEdgesOf(id[0])
-            .stream()
-            .map(e -> e.getSource())
-            .collect(Collectors.toSet());
-
-        for (int i = 1; i < id.length; i++) {
-            result.retainAll(graph.incomingEdgesOf(id[i])
-                .stream()
-                .map(e -> e.getSource())
-                .collect(Collectors.toSet()));
+        int[] ordinals = new int[id.length];
+        for (int i = 0; i < id.length; i++) {
+            ordinals[i] = getOrdinal(id[i]);
         }
+        return Arrays.stream(hierarchy.getCommonDescendants(ordinals))
+            .mapToObj(conceptCache::keyAt)
+            .collect(Collectors.toSet());
+    }
 
-        return result;
+    public int getConceptCount() {
+        return conceptCache.size();
     }
 
-    public Concept getConcept(Long id) {
+    public Concept getConcept(long id) {
         return conceptCache.get(id);
     }
 
-    public Set<String> getArtgId(Long id) {
-        return artgIdCache.get(id);
+    public Set<String> getArtgId(long id) {
+        int ordinal = conceptCache.indexOf(id);
+        return ordinal == LongObjectMap.NOT_FOUND ? null : artgIdCache[ordinal];
     }
 
-    public Map<Long, Concept> getSubstances() {
+    public List<Concept> getSubstances() {
         return substances;
     }
 
+    /**
+     * Relationship rows held in parallel primitive arrays until they can be resolved
+     */
+    private static final class RelationshipRows {
+        private long[] id = new long[1024];
+        private int[] source = new int[1024];
+        private int[] destination = new int[1024];
+        private int[] type = new int[1024];
+        private int[] group = new int[1024];
+        private boolean[] active = new boolean[1024];
+        private int[] effectiveTime = new int[1024];
+        private int size;
+
+        private void add(long id, int source, int destination, AttributeType type, int group, boolean active,
+                int effectiveTime) {
+            if (size == this.id.length) {
+                int capacity = size * 2;
+                this.id = Arrays.copyOf(this.id, capacity);
+                this.source = Arrays.copyOf(this.source, capacity);
+                this.destination = Arrays.copyOf(this.destination, capacity);
+                this.type = Arrays.copyOf(this.type, capacity);
+                this.group = Arrays.copyOf(this.group, capacity);
+                this.active = Arrays.copyOf(this.active, capacity);
+                this.effectiveTime = Arrays.copyOf(this.effectiveTime, capacity);
+            }
+            this.id[size] = id;
+            this.source[size] = source;
+            this.destination[size] = destination;
+            this.type[size] = type.ordinal();
+            this.group[size] = group;
+            this.active[size] = active;
+            this.effectiveTime[size] = effectiveTime;
+            size++;
+        }
+    }
 }
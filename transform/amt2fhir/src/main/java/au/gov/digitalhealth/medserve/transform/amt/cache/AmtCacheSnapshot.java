@@ -0,0 +1,303 @@
+package au.gov.digitalhealth.medserve.transform.amt.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+
+import au.gov.digitalhealth.medserve.transform.amt.enumeration.AttributeType;
+import au.gov.digitalhealth.medserve.transform.amt.model.Concept;
+import au.gov.digitalhealth.medserve.transform.amt.model.DataTypeProperty;
+import au.gov.digitalhealth.medserve.transform.amt.model.Relationship;
+import au.gov.digitalhealth.medserve.transform.util.LongObjectMap;
+
+/**
+ * Binary snapshot of an AMT release as loaded by {@link AmtCache} - the concepts with their terms, relationship
+ * groups, datatype properties, historical associations and ARTG ids, and the transitive closure of the IS-A
+ * relationships. Concepts are written in ordinal order and refer to each other by ordinal, so reading the snapshot
+ * back is a single pass over the memory mapped file with no lookups by id.
+ * <p>
+ * The snapshot doesn't include anything from the PBS extract, which is applied on top of the loaded release.
+ */
+final class AmtCacheSnapshot {
+
+    private static final int MAGIC = 0x414D5443;
+
+    /** incremented whenever the layout changes, snapshots of other versions are ignored */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final AttributeType[] ATTRIBUTE_TYPES = AttributeType.values();
+
+    private final LongObjectMap<Concept> concepts;
+    private final ConceptHierarchy hierarchy;
+    private final Set<String>[] artgIds;
+
+    AmtCacheSnapshot(LongObjectMap<Concept> concepts, ConceptHierarchy hierarchy, Set<String>[] artgIds) {
+        this.concepts = concepts;
+        this.hierarchy = hierarchy;
+        this.artgIds = artgIds;
+    }
+
+    LongObjectMap<Concept> getConcepts() {
+        return concepts;
+    }
+
+    ConceptHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    Set<String>[] getArtgIds() {
+        return artgIds;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file next to the file and moves it into place once complete, so a
+     * snapshot is never seen half written
+     */
+    void write(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                write(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(concepts.size());
+
+        for (Concept concept : concepts.values()) {
+            out.writeLong(concept.getId());
+            out.writeBoolean(concept.isActive());
+            out.writeInt(concept.getConceptLastModified());
+            out.writeInt(concept.getLastModified());
+            writeString(out, concept.getFullSpecifiedName());
+            writeString(out, concept.getPreferredTerm());
+        }
+
+        for (int ordinal = 0; ordinal < concepts.size(); ordinal++) {
+            Concept concept = concepts.valueAt(ordinal);
+
+            List<Concept> parents = concept.getParents();
+            out.writeInt(parents.size());
+            for (Concept parent : parents) {
+                out.writeInt(concepts.indexOf(parent.getId()));
+            }
+
+            int[] ancestors = hierarchy.getAncestors(ordinal);
+            out.writeInt(ancestors.length);
+            for (int ancestor : ancestors) {
+                out.writeInt(ancestor);
+            }
+
+            Collection<Collection<Relationship>> groups = concept.getRelationshipGroups();
+            out.writeInt(groups.size());
+            for (Collection<Relationship> group : groups) {
+                out.writeInt(group.size());
+                for (Relationship relationship : group) {
+                    writeRelationship(out, relationship);
+                }
+            }
+
+            writeAssociations(out, concept.getReplacementConcept());
+            writeAssociations(out, concept.getReplacedConcept());
+
+            Set<String> conceptArtgIds = artgIds[ordinal];
+            out.writeInt(conceptArtgIds == null ? -1 : conceptArtgIds.size());
+            if (conceptArtgIds != null) {
+                for (String artgId : conceptArtgIds) {
+                    writeString(out, artgId);
+                }
+            }
+        }
+    }
+
+    private void writeRelationship(DataOutputStream out, Relationship relationship) throws IOException {
+        out.writeInt(concepts.indexOf(relationship.getDestination().getId()));
+        out.writeByte(relationship.getType().ordinal());
+        out.writeBoolean(relationship.isActive());
+        out.writeInt(relationship.getEffectiveTime());
+
+        DataTypeProperty datatypeProperty = relationship.getDatatypeProperty();
+        out.writeBoolean(datatypeProperty != null);
+        if (datatypeProperty != null) {
+            writeString(out, datatypeProperty.getValue());
+            Concept unit = datatypeProperty.getUnit();
+            out.writeInt(unit == null ? LongObjectMap.NOT_FOUND : concepts.indexOf(unit.getId()));
+            out.writeByte(datatypeProperty.getType().ordinal());
+        }
+    }
+
+    private void writeAssociations(DataOutputStream out, List<ImmutableTriple<Long, Concept, Integer>> associations)
+            throws IOException {
+        out.writeInt(associations == null ? 0 : associations.size());
+        if (associations != null) {
+            for (ImmutableTriple<Long, Concept, Integer> association : associations) {
+                out.writeLong(association.left);
+                out.writeInt(concepts.indexOf(association.middle.getId()));
+                out.writeInt(association.right);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Path)}, relationship groups are added to the concepts but they are
+     * left for the caller to freeze
+     *
+     * @throws IOException if the file can't be read, or isn't a complete snapshot of this format version
+     */
+    static AmtCacheSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is too large to map at " + channel.size() + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            return new Reader(buffer).read(file);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+                | IllegalArgumentException e) {
+            throw new IOException("Snapshot " + file + " is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * Reads the sections of the snapshot back in the order they were written
+     */
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private byte[] stringBytes = new byte[256];
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @SuppressWarnings("unchecked")
+        private AmtCacheSnapshot read(Path file) throws IOException {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not an AMT snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(
+                    "Snapshot " + file + " is format version " + version + " not " + FORMAT_VERSION);
+            }
+
+            int size = buffer.getInt();
+            LongObjectMap<Concept> concepts = new LongObjectMap<>(size);
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                long id = buffer.getLong();
+                boolean active = buffer.get() != 0;
+                Concept concept = new Concept(id, active, buffer.getInt());
+                concept.updateLastModified(buffer.getInt());
+                concept.setFullSpecifiedName(readString());
+                concept.setPreferredTerm(readString());
+                concepts.put(id, concept);
+            }
+
+            int[][] ancestors = new int[size][];
+            Set<String>[] artgIds = new Set[size];
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                Concept concept = concepts.valueAt(ordinal);
+
+                int parents = buffer.getInt();
+                for (int i = 0; i < parents; i++) {
+                    concept.addParent(concepts.valueAt(buffer.getInt()));
+                }
+
+                ancestors[ordinal] = new int[buffer.getInt()];
+                for (int i = 0; i < ancestors[ordinal].length; i++) {
+                    ancestors[ordinal][i] = buffer.getInt();
+                }
+
+                int groups = buffer.getInt();
+                for (int group = 0; group < groups; group++) {
+                    int relationships = buffer.getInt();
+                    for (int i = 0; i < relationships; i++) {
+                        concept.addRelationship(group, readRelationship(concepts, concept));
+                    }
+                }
+
+                int replacements = buffer.getInt();
+                for (int i = 0; i < replacements; i++) {
+                    concept.addReplacementConcept(buffer.getLong(), concepts.valueAt(buffer.getInt()),
+                        buffer.getInt());
+                }
+                int replaced = buffer.getInt();
+                for (int i = 0; i < replaced; i++) {
+                    concept.addReplacedConcept(buffer.getLong(), concepts.valueAt(buffer.getInt()),
+                        buffer.getInt());
+                }
+
+                int artgIdCount = buffer.getInt();
+                if (artgIdCount >= 0) {
+                    artgIds[ordinal] = new HashSet<>();
+                    for (int i = 0; i < artgIdCount; i++) {
+                        artgIds[ordinal].add(readString());
+                    }
+                }
+            }
+
+            if (buffer.hasRemaining()) {
+                throw new IOException("Snapshot " + file + " has " + buffer.remaining() + " unexpected bytes");
+            }
+            return new AmtCacheSnapshot(concepts, ConceptHierarchy.fromAncestors(ancestors), artgIds);
+        }
+
+        private Relationship readRelationship(LongObjectMap<Concept> concepts, Concept source) {
+            Concept destination = concepts.valueAt(buffer.getInt());
+            AttributeType type = ATTRIBUTE_TYPES[buffer.get()];
+            boolean active = buffer.get() != 0;
+            Relationship relationship = new Relationship(source, destination, type, active, buffer.getInt());
+
+            if (buffer.get() != 0) {
+                String value = readString();
+                int unit = buffer.getInt();
+                relationship.setDatatypeProperty(new DataTypeProperty(value,
+                    unit == LongObjectMap.NOT_FOUND ? null : concepts.valueAt(unit), ATTRIBUTE_TYPES[buffer.get()]));
+            }
+            return relationship;
+        }
+
+        private String readString() {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > stringBytes.length) {
+                stringBytes = new byte[Math.max(length, stringBytes.length * 2)];
+            }
+            buffer.get(stringBytes, 0, length);
+            return new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package au.gov.digitalhealth.medserve.transform.amt.cache;
+
+import java.util.Arrays;
+
+/**
+ * IS-A hierarchy of the AMT concepts held in primitive arrays, keyed by the dense concept ordinals assigned by
+ * {@link AmtCache}. IS-A relationships are collected as pairs of ordinals, then {@link #close(int)} visits the concepts
+ * in topological order, parents before children, building each concept's ancestors as a sorted array of ordinals from
+ * its parents' ancestors, and inverts those into sorted descendant arrays. After that every lookup is an array read.
+ * <p>
+ * Not thread safe, relationships are expected to be added by one thread at a time and lookups to happen after
+ * {@link #close(int)}.
+ */
+class ConceptHierarchy {
+
+    private static final int[] NONE = new int[0];
+
+    private int size;
+
+    private int[] edgeChild = new int[1024];
+    private int[] edgeParent = new int[1024];
+    private int edgeCount;
+
+    private int[][] ancestors;
+    private int[][] descendants;
+
+    /**
+     * Records that the child concept IS-A the parent concept
+     */
+    void addIsA(int child, int parent) {
+        checkOpen();
+        if (edgeCount == edgeChild.length) {
+            edgeChild = Arrays.copyOf(edgeChild, edgeCount * 2);
+            edgeParent = Arrays.copyOf(edgeParent, edgeCount * 2);
+        }
+        edgeChild[edgeCount] = child;
+        edgeParent[edgeCount] = parent;
+        edgeCount++;
+    }
+
+    /**
+     * Calculates the transitive closure of the IS-A relationships, no more relationships can be added afterwards
+     *
+     * @param size the number of concept ordinals, all ordinals added must be less than this
+     * @throws IllegalStateException if the IS-A relationships contain a cycle
+     */
+    void close(int size) {
+        checkOpen();
+        this.size = size;
+        int[][] parents = group(edgeChild, edgeParent);
+        int[][] children = group(edgeParent, edgeChild);
+        edgeChild = null;
+        edgeParent = null;
+
+        int[] remainingParents = new int[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < size; i++) {
+            remainingParents[i] = parents[i].length;
+            if (remainingParents[i] == 0) {
+                queue[tail++] = i;
+            }
+        }
+
+        ancestors = new int[size][];
+        int[] seen = new int[size];
+        int[] buffer = new int[64];
+        while (head < tail) {
+            int concept = queue[head++];
+            int stamp = concept + 1;
+            int count = 0;
+            for (int parent : parents[concept]) {
+                if (seen[parent] != stamp) {
+                    seen[parent] = stamp;
+                    buffer = ensureCapacity(buffer, count + 1 + ancestors[parent].length);
+                    buffer[count++] = parent;
+                    for (int ancestor : ancestors[parent]) {
+                        if (seen[ancestor] != stamp) {
+                            seen[ancestor] = stamp;
+                            buffer[count++] = ancestor;
+                        }
+                    }
+                }
+            }
+            int[] result = count == 0 ? NONE : Arrays.copyOf(buffer, count);
+            Arrays.sort(result);
+            ancestors[concept] = result;
+
+            for (int child : children[concept]) {
+                if (--remainingParents[child] == 0) {
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        if (tail != size) {
+            for (int i = 0; i < size; i++) {
+                if (ancestors[i] == null) {
+                    throw new IllegalStateException(
+                        "IS-A relationships contain a cycle including concept ordinal " + i);
+                }
+            }
+        }
+
+        invertAncestors();
+    }
+
+    /**
+     * Restores a closed hierarchy from the ancestors of each concept ordinal, as returned by
+     * {@link #getAncestors(int)}
+     */
+    static ConceptHierarchy fromAncestors(int[][] ancestors) {
+        ConceptHierarchy hierarchy = new ConceptHierarchy();
+        hierarchy.edgeChild = null;
+        hierarchy.edgeParent = null;
+        hierarchy.size = ancestors.length;
+        hierarchy.ancestors = ancestors;
+        hierarchy.invertAncestors();
+        return hierarchy;
+    }
+
+    private void invertAncestors() {
+        int[] counts = new int[size];
+        for (int[] conceptAncestors : ancestors) {
+            for (int ancestor : conceptAncestors) {
+                counts[ancestor]++;
+            }
+        }
+        descendants = new int[size][];
+        for (int i = 0; i < size; i++) {
+            descendants[i] = counts[i] == 0 ? NONE : new int[counts[i]];
+            counts[i] = 0;
+        }
+        // visiting concepts in ordinal order leaves each descendant array sorted
+        for (int i = 0; i < size; i++) {
+            for (int ancestor : ancestors[i]) {
+                descendants[ancestor][counts[ancestor]++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return the ordinals of the concept's ancestors in ascending order, must not be modified
+     */
+    int[] getAncestors(int ordinal) {
+        checkClosed();
+        return ancestors[ordinal];
+    }
+
+    /**
+     * @return the ordinals of the concept's descendants in ascending order, must not be modified
+     */
+    int[] getDescendants(int ordinal) {
+        checkClosed();
+        return descendants[ordinal];
+    }
+
+    boolean isDescendantOf(int ordinal, int ancestor) {
+        return Arrays.binarySearch(getAncestors(ordinal), ancestor) >= 0;
+    }
+
+    /**
+     * @return the ordinals of the concepts that are descendants of all of the specified concepts in ascending order
+     */
+    int[] getCommonDescendants(int... ordinals) {
+        int[] result = getDescendants(ordinals[0]);
+        for (int i = 1; i < ordinals.length && result.length > 0; i++) {
+            result = intersect(result, getDescendants(ordinals[i]));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Groups the values by key into an array per key ordinal
+     */
+    private int[][] group(int[] keys, int[] values) {
+        int[] counts = new int[size];
+        for (int i = 0; i < edgeCount; i++) {
+            counts[keys[i]]++;
+        }
+        int[][] result = new int[size][];
+        for (int i = 0; i < size; i++) {
+            result[i] = counts[i] == 0 ? NONE : new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            result[keys[i]][counts[keys[i]]++] = values[i];
+        }
+        return result;
+    }
+
+    private static int[] ensureCapacity(int[] buffer, int capacity) {
+        return capacity <= buffer.length ? buffer : Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    private void checkOpen() {
+        if (ancestors != null) {
+            throw new IllegalStateException("Hierarchy has already been closed");
+        }
+    }
+
+    private void checkClosed() {
+        if (ancestors == null) {
+            throw new IllegalStateException("Hierarchy has not been closed");
+        }
+    }
+}
@@ -61,7 +61,11 @@ public enum AttributeType {
     }
 
     public static boolean isEnumValue(String idString) {
-        return instanceMap.containsKey(Long.parseLong(idString));
+        return isEnumValue(Long.parseLong(idString));
+    }
+
+    public static boolean isEnumValue(long id) {
+        return instanceMap.containsKey(id);
     }
 
 }
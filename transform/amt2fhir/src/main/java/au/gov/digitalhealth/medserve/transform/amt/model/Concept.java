@@ -1,14 +1,16 @@
 package au.gov.digitalhealth.medserve.transform.amt.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.ImmutableTriple;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -19,27 +21,50 @@ import au.gov.digitalhealth.medserve.extension.MedicationType;
 import au.gov.digitalhealth.medserve.transform.amt.enumeration.AmtConcept;
 import au.gov.digitalhealth.medserve.transform.amt.enumeration.AttributeType;
 import au.gov.digitalhealth.medserve.transform.util.FhirCodeSystemUri;
+import au.gov.digitalhealth.medserve.transform.util.LongObjectMap;
 
 public class Concept {
 
+    private static final Concept[] NO_CONCEPTS = new Concept[0];
+
+    private static final Relationship[] NO_RELATIONSHIPS = new Relationship[0];
+
+    /** the AMT types in the order a concept descending from more than one of them is treated as */
+    private static final AmtConcept[] AMT_TYPE_PRECEDENCE = { AmtConcept.CTPP, AmtConcept.TPP, AmtConcept.TPUU,
+            AmtConcept.MPP, AmtConcept.MPUU, AmtConcept.MP, AmtConcept.SUBSTANCE };
+
+    /** the (parent type, current type) pairs leaf ancestors are calculated up front for */
+    private static final AmtConcept[][] LEAF_ANCESTOR_TYPES = { { AmtConcept.TPP, AmtConcept.CTPP },
+            { AmtConcept.MPP, AmtConcept.TPP }, { AmtConcept.MPUU, AmtConcept.TPUU },
+            { AmtConcept.MP, AmtConcept.MPUU } };
+
     private long id;
     private String fullSpecifiedName;
     private String preferredTerm;
-    private Map<Long, Set<Relationship>> relationshipGroups = new HashMap<>();
-    private Map<Long, Concept> parents = new HashMap<>();
+    /** relationships by group while loading, replaced by the arrays below by {@link #freeze()} */
+    private LongObjectMap<Set<Relationship>> relationshipGroups = new LongObjectMap<>(4);
+    private Relationship[][] groups;
+    private EnumMap<AttributeType, Relationship[]> relationships;
+    private Concept[] parents = NO_CONCEPTS;
     private CodeableConcept codableConcept;
     private Coding coding;
-    private Map<Long, Concept> ancestors = new HashMap<>();
+    /** ancestor ids in ascending order, and the ancestors in the same order */
+    private long[] ancestorIds = new long[0];
+    private Concept[] ancestors = NO_CONCEPTS;
+    /** the AMT concepts this concept is a descendant of */
+    private final EnumSet<AmtConcept> amtTypes = EnumSet.noneOf(AmtConcept.class);
+    /** leaf ancestor for each of the LEAF_ANCESTOR_TYPES, or null if there isn't exactly one */
+    private Concept[] leafAncestors;
     private boolean active;
-    private Date lastModified;
-    private Date conceptLastModified;
+    /** day keys as described by {@link EffectiveTime} */
+    private int lastModified;
+    private int conceptLastModified;
     private Set<Subsidy> subsidies = new HashSet<>();
     private Manufacturer manufacturer;
-    private List<ImmutableTriple<Long, Concept, Date>> replacementConcepts;
-    private List<ImmutableTriple<Long, Concept, Date>> replacedConcepts;
-    private Map<String, Concept> leafAncestor = new HashMap<>();
+    private List<ImmutableTriple<Long, Concept, Integer>> replacementConcepts;
+    private List<ImmutableTriple<Long, Concept, Integer>> replacedConcepts;
 
-    public Concept(long id, boolean active, Date conceptLastModified) {
+    public Concept(long id, boolean active, int conceptLastModified) {
         this.id = id;
         this.active = active;
         this.conceptLastModified = conceptLastModified;
@@ -47,7 +72,10 @@ public class Concept {
     }
 
     public void addParent(Concept concept) {
-        parents.put(concept.getId(), concept);
+        if (!hasParent(concept)) {
+            parents = Arrays.copyOf(parents, parents.length + 1);
+            parents[parents.length - 1] = concept;
+        }
     }
 
     public long getId() {
@@ -74,69 +102,125 @@ public class Concept {
         this.preferredTerm = preferredTerm;
     }
 
-    public Map<Long, Set<Relationship>> getRelationshipGroups() {
-        return relationshipGroups;
+    public void addRelationship(long groupId, Relationship relationship) {
+        if (relationshipGroups == null) {
+            throw new IllegalStateException("Relationships can't be added to " + id + " once it is frozen");
+        }
+        Set<Relationship> group = relationshipGroups.get(groupId);
+        if (group == null) {
+            group = new HashSet<>();
+            relationshipGroups.put(groupId, group);
+        }
+        group.add(relationship);
+    }
+
+    /**
+     * Indexes the concept's relationships by type once they have all been loaded. The relationship lookups below
+     * can only be used after this, and no more relationships can be added. The concept's Coding and CodeableConcept
+     * are built here too, once its preferred term is known, so they are complete before resources are created from
+     * them on several threads.
+     */
+    public void freeze() {
+        coding = new Coding(FhirCodeSystemUri.SNOMED_CT_SYSTEM_URI.getUri(), Long.toString(getId()),
+            getPreferredTerm());
+        codableConcept = new CodeableConcept();
+        codableConcept.addCoding(coding);
+
+        EnumMap<AttributeType, List<Relationship>> byType = new EnumMap<>(AttributeType.class);
+        groups = new Relationship[relationshipGroups.size()][];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = relationshipGroups.valueAt(i).toArray(NO_RELATIONSHIPS);
+            for (Relationship relationship : groups[i]) {
+                byType.computeIfAbsent(relationship.getType(), t -> new ArrayList<>()).add(relationship);
+            }
+        }
+        relationships = new EnumMap<>(AttributeType.class);
+        byType.forEach((type, list) -> relationships.put(type, list.toArray(NO_RELATIONSHIPS)));
+        relationshipGroups = null;
     }
 
-    public void setRelationshipGroups(Map<Long, Set<Relationship>> relationshipGroups) {
-        this.relationshipGroups = relationshipGroups;
+    private Relationship[] getRelationshipArray(AttributeType type) {
+        if (relationships == null) {
+            throw new IllegalStateException("Concept " + id + " has not been frozen");
+        }
+        Relationship[] result = relationships.get(type);
+        return result == null ? NO_RELATIONSHIPS : result;
     }
 
+    /**
+     * @return the concept's CodeableConcept, shared by all callers so it must not be modified
+     */
     public CodeableConcept toCodeableConcept() {
         if (codableConcept == null) {
-            codableConcept = new CodeableConcept();
-            List<Coding> list = new ArrayList<>();
-            list.add(toCoding());
-            codableConcept.setCoding(list);
+            throw new IllegalStateException("Concept " + id + " has not been frozen");
         }
         return codableConcept;
     }
 
+    /**
+     * @return the concept's Coding, shared by all callers so it must not be modified
+     */
     public Coding toCoding() {
         if (coding == null) {
-            coding = new Coding(FhirCodeSystemUri.SNOMED_CT_SYSTEM_URI.getUri(), Long.toString(getId()),
-                getPreferredTerm());
+            throw new IllegalStateException("Concept " + id + " has not been frozen");
         }
         return coding;
     }
 
     public Concept getSingleDestination(AttributeType relationshipType) {
-        Relationship relationship = getRelationshipGroups().values()
-            .stream()
-            .flatMap(list -> list.stream())
-            .filter(rel -> rel.getType().equals(relationshipType))
-            .findFirst()
-            .orElse(null);
-        return relationship == null ? null : relationship.getDestination();
+        Relationship[] relationships = getRelationshipArray(relationshipType);
+        return relationships.length == 0 ? null : relationships[0].getDestination();
     }
 
     public Collection<Concept> getMultipleDestinations(AttributeType relationshipType) {
-        return getRelationshipGroups().values()
-            .stream()
-            .flatMap(list -> list.stream())
-            .filter(rel -> rel.getType().equals(relationshipType))
-            .map(r -> r.getDestination())
-            .collect(Collectors.toSet());
+        Relationship[] relationships = getRelationshipArray(relationshipType);
+        if (relationships.length == 1) {
+            return Collections.singletonList(relationships[0].getDestination());
+        }
+        Set<Concept> result = new HashSet<>();
+        for (Relationship relationship : relationships) {
+            result.add(relationship.getDestination());
+        }
+        return result;
     }
 
     public Collection<Relationship> getRelationships(AttributeType type) {
-        return getRelationshipGroups().values()
-            .stream()
-            .flatMap(list -> list.stream())
-            .filter(r -> r.getType().equals(type))
-            .collect(Collectors.toSet());
+        return Collections.unmodifiableList(Arrays.asList(getRelationshipArray(type)));
+    }
+
+    /**
+     * @return all of the concept's relationship groups, in the same order as they were added
+     */
+    public Collection<Collection<Relationship>> getRelationshipGroups() {
+        if (groups == null) {
+            throw new IllegalStateException("Concept " + id + " has not been frozen");
+        }
+        Collection<Collection<Relationship>> result = new ArrayList<>(groups.length);
+        for (Relationship[] group : groups) {
+            result.add(Collections.unmodifiableList(Arrays.asList(group)));
+        }
+        return result;
     }
 
     public Collection<Collection<Relationship>> getRelationshipGroupsContaining(AttributeType type) {
-        return getRelationshipGroups().values()
-            .stream()
-            .filter(l -> l.stream().anyMatch(r -> r.getType().equals(type)))
-            .collect(Collectors.toSet());
+        if (getRelationshipArray(type).length == 0) {
+            return Collections.emptyList();
+        }
+        Collection<Collection<Relationship>> result = new ArrayList<>();
+        for (Relationship[] group : groups) {
+            for (Relationship relationship : group) {
+                if (relationship.getType().equals(type)) {
+                    result.add(Collections.unmodifiableList(Arrays.asList(group)));
+                    break;
+                }
+            }
+        }
+        return result;
     }
 
     public boolean hasOneMatchingParent(AmtConcept... amtConcept) {
         for (AmtConcept parent : amtConcept) {
-            if (parents.containsKey(parent.getId())) {
+            if (hasParent(parent.getId())) {
                 return true;
             }
         }
@@ -144,15 +228,24 @@ public class Concept {
     }
 
     public boolean hasParent(AmtConcept amtConcept) {
-        return parents.containsKey(amtConcept.getId());
+        return hasParent(amtConcept.getId());
     }
 
     public boolean hasParent(Concept concept) {
-        return parents.containsKey(concept.getId());
+        return hasParent(concept.getId());
+    }
+
+    private boolean hasParent(long parentId) {
+        for (Concept parent : parents) {
+            if (parent.getId() == parentId) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public Map<Long, Concept> getParents() {
-        return parents;
+    public List<Concept> getParents() {
+        return Collections.unmodifiableList(Arrays.asList(parents));
     }
 
     public String toConceptReference() {
@@ -165,57 +258,113 @@ public class Concept {
         return setA.containsAll(setB) && setB.containsAll(setA);
     }
 
-    public void addAncestors(Map<Long, Concept> map) {
-        ancestors.putAll(map);
+    public void setAncestors(Collection<Concept> concepts) {
+        ancestors = concepts.toArray(NO_CONCEPTS);
+        Arrays.sort(ancestors, Comparator.comparingLong(Concept::getId));
+        ancestorIds = new long[ancestors.length];
+        for (int i = 0; i < ancestors.length; i++) {
+            ancestorIds[i] = ancestors[i].getId();
+        }
+    }
+
+    /**
+     * Records that the concept is a descendant of the AMT concept, set for all concepts once the transitive closure
+     * has been calculated
+     */
+    public void addAmtType(AmtConcept type) {
+        amtTypes.add(type);
     }
 
     public boolean hasAtLeastOneMatchingAncestor(AmtConcept... concepts) {
         for (AmtConcept amtConcept : concepts) {
-            if (ancestors.containsKey(amtConcept.getId())) {
+            if (amtTypes.contains(amtConcept)) {
                 return true;
             }
         }
         return false;
     }
 
+    private boolean hasAncestor(Concept concept) {
+        return Arrays.binarySearch(ancestorIds, concept.getId()) >= 0;
+    }
+
     public Collection<Concept> getAncestors(AmtConcept concept) {
         Collection<Concept> result = new ArrayList<>();
-        for (Concept ancestor : ancestors.values()) {
-            if (ancestor.hasAtLeastOneMatchingAncestor(concept)) {
+        for (Concept ancestor : ancestors) {
+            if (ancestor.amtTypes.contains(concept)) {
                 result.add(ancestor);
             }
         }
         return result;
     }
 
-    public Concept getLeafAncestor(AmtConcept parentType, AmtConcept currentType) {
-        String cacheKey = parentType.getDisplay() + " " + currentType.getDisplay();
-        if (!leafAncestor.containsKey(cacheKey)) {
-            Set<Concept> leafParents = new HashSet<>();
-
-            leafParents.addAll(getAncestors(parentType).stream()
-                .filter(p -> !AmtConcept.isEnumValue(p.getId()))
-                .filter(p -> p.hasAtLeastOneMatchingAncestor(parentType))
-                .filter(p -> !p.hasAtLeastOneMatchingAncestor(currentType))
-                .collect(Collectors.toSet()));
-
-            Set<Concept> redunantAncestors =
-                    leafParents.stream().flatMap(p -> p.getAncestors(parentType).stream()).collect(Collectors.toSet());
+    /**
+     * Calculates the concept's leaf ancestors for the type pairs the resource generator asks for, must be called
+     * after the ancestors and AMT types of all concepts have been set
+     */
+    public void calculateLeafAncestors() {
+        for (int i = 0; i < LEAF_ANCESTOR_TYPES.length; i++) {
+            if (amtTypes.contains(LEAF_ANCESTOR_TYPES[i][1])) {
+                List<Concept> leaves = findLeafAncestors(LEAF_ANCESTOR_TYPES[i][0], LEAF_ANCESTOR_TYPES[i][1]);
+                if (leaves.size() == 1) {
+                    if (leafAncestors == null) {
+                        leafAncestors = new Concept[LEAF_ANCESTOR_TYPES.length];
+                    }
+                    leafAncestors[i] = leaves.get(0);
+                }
+            }
+        }
+    }
 
-            leafParents.removeAll(redunantAncestors);
+    public Concept getLeafAncestor(AmtConcept parentType, AmtConcept currentType) {
+        if (leafAncestors != null) {
+            for (int i = 0; i < LEAF_ANCESTOR_TYPES.length; i++) {
+                if (LEAF_ANCESTOR_TYPES[i][0] == parentType && LEAF_ANCESTOR_TYPES[i][1] == currentType
+                        && leafAncestors[i] != null) {
+                    return leafAncestors[i];
+                }
+            }
+        }
 
-            if (leafParents.size() > 1) {
-                throw new RuntimeException("Concept " + this + " has more than one ancestor of type " + parentType);
+        List<Concept> leaves = findLeafAncestors(parentType, currentType);
+        if (leaves.size() > 1) {
+            throw new RuntimeException("Concept " + this + " has more than one ancestor of type " + parentType);
+        }
+        return leaves.iterator().next();
+    }
+
+    /**
+     * @return the non enumeration ancestors of the parent type that aren't of the current type, excluding any that
+     *         are ancestors of the others
+     */
+    private List<Concept> findLeafAncestors(AmtConcept parentType, AmtConcept currentType) {
+        List<Concept> candidates = new ArrayList<>();
+        for (Concept ancestor : ancestors) {
+            if (ancestor.amtTypes.contains(parentType) && !ancestor.amtTypes.contains(currentType)
+                    && !AmtConcept.isEnumValue(ancestor.getId())) {
+                candidates.add(ancestor);
             }
+        }
 
-            leafAncestor.put(cacheKey, leafParents.iterator().next());
+        List<Concept> leaves = new ArrayList<>(1);
+        for (Concept candidate : candidates) {
+            boolean redundant = false;
+            for (Concept other : candidates) {
+                if (other != candidate && other.hasAncestor(candidate)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                leaves.add(candidate);
+            }
         }
-        return leafAncestor.get(cacheKey);
+        return leaves;
     }
 
     @Override
     public String toString() {
-        return "Concept [id=" + id + ", fullSpecifiedName=" + fullSpecifiedName + ", parents=" + parents + "]";
+        return "Concept [id=" + id + ", fullSpecifiedName=" + fullSpecifiedName + ", parents=" + getParents() + "]";
     }
 
     public boolean isActive() {
@@ -268,20 +417,10 @@ public class Concept {
     }
 
     public AmtConcept getAmtType() {
-        if (hasAtLeastOneMatchingAncestor(AmtConcept.CTPP)) {
-            return AmtConcept.CTPP;
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.TPP)) {
-            return AmtConcept.TPP;
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.TPUU)) {
-            return AmtConcept.TPUU;
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.MPP)) {
-            return AmtConcept.MPP;
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.MPUU)) {
-            return AmtConcept.MPUU;
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.MP)) {
-            return AmtConcept.MP;
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.SUBSTANCE)) {
-            return AmtConcept.SUBSTANCE;
+        for (AmtConcept type : AMT_TYPE_PRECEDENCE) {
+            if (amtTypes.contains(type)) {
+                return type;
+            }
         }
         throw new RuntimeException("Concept " + this + " is not of a known AmtConcept type");
     }
@@ -305,16 +444,16 @@ public class Concept {
         }
     }
 
-    public Date getLastModified() {
+    public int getLastModified() {
         return lastModified;
     }
 
-    public Date getConceptLastModified() {
+    public int getConceptLastModified() {
         return conceptLastModified;
     }
 
-    public void updateLastModified(Date effectiveTime) {
-        if (effectiveTime.after(lastModified)) {
+    public synchronized void updateLastModified(int effectiveTime) {
+        if (effectiveTime > lastModified) {
             lastModified = effectiveTime;
         }
     }
@@ -323,25 +462,25 @@ public class Concept {
         return active ? MedicationStatus.ACTIVE : MedicationStatus.ENTEREDINERROR;
     }
 
-    public void addReplacementConcept(long type, Concept replacement, Date date) {
+    public void addReplacementConcept(long type, Concept replacement, int date) {
         if (replacementConcepts == null) {
             replacementConcepts = new ArrayList<>();
         }
-        replacementConcepts.add(new ImmutableTriple<Long, Concept, Date>(type, replacement, date));
+        replacementConcepts.add(new ImmutableTriple<Long, Concept, Integer>(type, replacement, date));
     }
 
-    public void addReplacedConcept(long type, Concept retiredConcept, Date date) {
+    public void addReplacedConcept(long type, Concept retiredConcept, int date) {
         if (replacedConcepts == null) {
             replacedConcepts = new ArrayList<>();
         }
-        replacedConcepts.add(new ImmutableTriple<Long, Concept, Date>(type, retiredConcept, date));
+        replacedConcepts.add(new ImmutableTriple<Long, Concept, Integer>(type, retiredConcept, date));
     }
 
-    public List<ImmutableTriple<Long, Concept, Date>> getReplacementConcept() {
+    public List<ImmutableTriple<Long, Concept, Integer>> getReplacementConcept() {
         return replacementConcepts;
     }
 
-    public List<ImmutableTriple<Long, Concept, Date>> getReplacedConcept() {
+    public List<ImmutableTriple<Long, Concept, Integer>> getReplacedConcept() {
         return replacedConcepts;
     }
 
@@ -364,20 +503,21 @@ public class Concept {
 
     public CodeableConcept getBrand() {
         CodeableConcept brand = null;
-        if (hasAtLeastOneMatchingAncestor(AmtConcept.TP)) {
-            if (getAncestors(AmtConcept.TP)
-                .stream()
-                .filter(c -> !AmtConcept.isEnumValue(c.getId()))
-                .count() > 1) {
-                throw new RuntimeException("more than one TP " + getAncestors(AmtConcept.TP));
+        if (amtTypes.contains(AmtConcept.TP)) {
+            Concept tp = null;
+            for (Concept ancestor : ancestors) {
+                if (ancestor.amtTypes.contains(AmtConcept.TP) && !AmtConcept.isEnumValue(ancestor.getId())) {
+                    if (tp != null) {
+                        throw new RuntimeException("more than one TP " + getAncestors(AmtConcept.TP));
+                    }
+                    tp = ancestor;
+                }
+            }
+            if (tp == null) {
+                throw new NoSuchElementException("No TP for " + this);
             }
-            brand = getAncestors(AmtConcept.TP)
-                .stream()
-                .filter(c -> !AmtConcept.isEnumValue(c.getId()))
-                .iterator()
-                .next()
-                .toCodeableConcept();
-        } else if (hasAtLeastOneMatchingAncestor(AmtConcept.TPP)) {
+            brand = tp.toCodeableConcept();
+        } else if (amtTypes.contains(AmtConcept.TPP)) {
             brand = getSingleDestination(AttributeType.HAS_TP).toCodeableConcept();
         }
         return brand;
@@ -0,0 +1,49 @@
+package au.gov.digitalhealth.medserve.transform.amt.model;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.dstu3.model.DateType;
+
+/**
+ * Effective times are held as int day keys, the yyyyMMdd digits of the release file read as a number such as
+ * 20181031. Keys sort and compare the same way as the days they stand for, and no objects are created for them while
+ * loading. They are only turned into dates when resources are built, and a release has few enough distinct effective
+ * times that the dates are interned by key.
+ */
+public final class EffectiveTime {
+
+    private static final Map<Integer, Date> dates = new ConcurrentHashMap<>();
+
+    private EffectiveTime() {
+    }
+
+    /**
+     * @param yyyyMMdd an effective time already read as a number
+     * @return the day key of the effective time
+     * @throws IllegalArgumentException if the number isn't a yyyyMMdd date
+     */
+    public static int valueOf(int yyyyMMdd) {
+        int year = yyyyMMdd / 10000;
+        int month = yyyyMMdd / 100 % 100;
+        int day = yyyyMMdd % 100;
+        if (year < 1000 || year > 9999 || month < 1 || month > 12 || day < 1 || day > 31) {
+            throw new IllegalArgumentException("Effective time " + yyyyMMdd + " is not a yyyyMMdd date");
+        }
+        return yyyyMMdd;
+    }
+
+    /**
+     * @return the start of the day in the default time zone, shared by all callers so it must not be modified
+     */
+    public static Date toDate(int key) {
+        return dates.computeIfAbsent(key,
+            k -> new GregorianCalendar(k / 10000, k / 100 % 100 - 1, k % 100).getTime());
+    }
+
+    public static DateType toDateType(int key) {
+        return new DateType(toDate(key));
+    }
+}
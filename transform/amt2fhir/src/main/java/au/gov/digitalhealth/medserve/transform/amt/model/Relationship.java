@@ -1,7 +1,5 @@
 package au.gov.digitalhealth.medserve.transform.amt.model;
 
-import java.util.Date;
-
 import au.gov.digitalhealth.medserve.transform.amt.enumeration.AttributeType;
 
 public class Relationship {
@@ -10,9 +8,9 @@ public class Relationship {
     private AttributeType type;
     private DataTypeProperty datatypeProperty;
     private boolean active;
-    private Date effectiveTime;
+    private int effectiveTime;
 
-    public Relationship(Concept source, Concept destination, AttributeType type, boolean active, Date effectiveTime) {
+    public Relationship(Concept source, Concept destination, AttributeType type, boolean active, int effectiveTime) {
         this.source = source;
         this.destination = destination;
         this.type = type;
@@ -56,7 +54,21 @@ public class Relationship {
         return active;
     }
 
-    public Date getEffectiveTime() {
+    public int getEffectiveTime() {
         return effectiveTime;
     }
+
+    /**
+     * Equality stays identity based, but the hash is derived from the relationship's content so sets of
+     * relationships iterate in the same order no matter which thread loaded them
+     */
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + (int) (source.getId() ^ (source.getId() >>> 32));
+        result = prime * result + (int) (destination.getId() ^ (destination.getId() >>> 32));
+        result = prime * result + type.ordinal();
+        return result;
+    }
 }
@@ -0,0 +1,153 @@
+package au.gov.digitalhealth.medserve.transform.amt.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ConceptHierarchyTest {
+
+    /**
+     * 0 is the root, 1 and 2 are both IS-A 0, 3 is IS-A 1 and 2, 4 is IS-A 3 and 5 stands alone
+     */
+    private static ConceptHierarchy diamond() {
+        ConceptHierarchy hierarchy = new ConceptHierarchy();
+        hierarchy.addIsA(4, 3);
+        hierarchy.addIsA(3, 1);
+        hierarchy.addIsA(3, 2);
+        hierarchy.addIsA(1, 0);
+        hierarchy.addIsA(2, 0);
+        hierarchy.close(6);
+        return hierarchy;
+    }
+
+    @Test
+    public void closesOverIsARelationships() {
+        ConceptHierarchy hierarchy = diamond();
+
+        assertArrayEquals(new int[0], hierarchy.getAncestors(0));
+        assertArrayEquals(new int[] { 0 }, hierarchy.getAncestors(1));
+        assertArrayEquals(new int[] { 0, 1, 2 }, hierarchy.getAncestors(3));
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, hierarchy.getAncestors(4));
+        assertArrayEquals(new int[0], hierarchy.getAncestors(5));
+
+        assertTrue(hierarchy.isDescendantOf(4, 0));
+        assertFalse(hierarchy.isDescendantOf(0, 4));
+        assertFalse(hierarchy.isDescendantOf(4, 4));
+    }
+
+    @Test
+    public void invertsAncestorsIntoDescendants() {
+        ConceptHierarchy hierarchy = diamond();
+
+        assertArrayEquals(new int[] { 1, 2, 3, 4 }, hierarchy.getDescendants(0));
+        assertArrayEquals(new int[] { 3, 4 }, hierarchy.getDescendants(1));
+        assertArrayEquals(new int[] { 4 }, hierarchy.getDescendants(3));
+        assertArrayEquals(new int[0], hierarchy.getDescendants(4));
+        assertArrayEquals(new int[0], hierarchy.getDescendants(5));
+
+        assertArrayEquals(new int[] { 3, 4 }, hierarchy.getCommonDescendants(1, 2));
+        assertArrayEquals(new int[0], hierarchy.getCommonDescendants(1, 5));
+    }
+
+    @Test
+    public void restoresDescendantsFromAncestors() {
+        ConceptHierarchy closed = diamond();
+        int[][] ancestors = new int[6][];
+        for (int i = 0; i < ancestors.length; i++) {
+            ancestors[i] = closed.getAncestors(i);
+        }
+
+        ConceptHierarchy restored = ConceptHierarchy.fromAncestors(ancestors);
+
+        for (int i = 0; i < ancestors.length; i++) {
+            assertArrayEquals(closed.getDescendants(i), restored.getDescendants(i));
+        }
+    }
+
+    @Test
+    public void matchesClosureOfRandomHierarchy() {
+        int size = 2000;
+        Random random = new Random(1);
+
+        // ordinals are shuffled so parents aren't always numbered before their children
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+
+        ConceptHierarchy hierarchy = new ConceptHierarchy();
+        List<List<Integer>> parents = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            parents.add(new ArrayList<>());
+        }
+        for (int i = 1; i < size; i++) {
+            int parentCount = 1 + random.nextInt(3);
+            for (int p = 0; p < parentCount; p++) {
+                int child = order.get(i);
+                int parent = order.get(random.nextInt(i));
+                hierarchy.addIsA(child, parent);
+                parents.get(child).add(parent);
+            }
+        }
+        hierarchy.close(size);
+
+        BitSet[] expectedDescendants = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            expectedDescendants[i] = new BitSet();
+        }
+        for (int i = 0; i < size; i++) {
+            BitSet expectedAncestors = new BitSet();
+            List<Integer> stack = new ArrayList<>(parents.get(i));
+            while (!stack.isEmpty()) {
+                int parent = stack.remove(stack.size() - 1);
+                if (!expectedAncestors.get(parent)) {
+                    expectedAncestors.set(parent);
+                    stack.addAll(parents.get(parent));
+                }
+            }
+            assertArrayEquals(expectedAncestors.stream().toArray(), hierarchy.getAncestors(i));
+            int concept = i;
+            expectedAncestors.stream().forEach(ancestor -> expectedDescendants[ancestor].set(concept));
+        }
+        for (int i = 0; i < size; i++) {
+            assertArrayEquals(expectedDescendants[i].stream().toArray(), hierarchy.getDescendants(i));
+        }
+    }
+
+    @Test
+    public void rejectsCycles() {
+        ConceptHierarchy hierarchy = new ConceptHierarchy();
+        hierarchy.addIsA(1, 0);
+        hierarchy.addIsA(2, 1);
+        hierarchy.addIsA(1, 2);
+
+        try {
+            hierarchy.close(3);
+            fail("Expected the cycle to be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("cycle"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsRelationshipsAfterClose() {
+        diamond().addIsA(5, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsLookupsBeforeClose() {
+        ConceptHierarchy hierarchy = new ConceptHierarchy();
+        hierarchy.addIsA(1, 0);
+        hierarchy.getAncestors(1);
+    }
+}
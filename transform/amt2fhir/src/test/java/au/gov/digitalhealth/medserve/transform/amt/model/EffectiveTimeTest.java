@@ -0,0 +1,66 @@
+package au.gov.digitalhealth.medserve.transform.amt.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class EffectiveTimeTest {
+
+    @Test
+    public void keysAreTheDigitsOfTheDate() {
+        assertEquals(20181031, EffectiveTime.valueOf(20181031));
+        assertEquals(20160229, EffectiveTime.valueOf(20160229));
+    }
+
+    @Test
+    public void rejectsNumbersThatAreNotDates() {
+        for (int notDate : new int[] { 0, 999, 2018103, 9991031, 100001031, 20180031, 20181331, 20181000,
+                20181032 }) {
+            try {
+                EffectiveTime.valueOf(notDate);
+                fail("Expected " + notDate + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void keysCompareAsTheirDays() {
+        assertTrue(EffectiveTime.valueOf(20171231) < EffectiveTime.valueOf(20180101));
+        assertTrue(EffectiveTime.valueOf(20180131) < EffectiveTime.valueOf(20180201));
+        assertTrue(EffectiveTime.toDate(20171231).before(EffectiveTime.toDate(20180101)));
+    }
+
+    @Test
+    public void convertsEveryDayOfALeapYearToTheStartOfThatDay() throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        Calendar day = Calendar.getInstance();
+        day.clear();
+        day.set(2016, Calendar.JANUARY, 1);
+        while (day.get(Calendar.YEAR) == 2016) {
+            String digits = format.format(day.getTime());
+            int key = EffectiveTime.valueOf(Integer.parseInt(digits));
+
+            assertEquals(digits, format.parse(digits), EffectiveTime.toDate(key));
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    @Test
+    public void sharesTheDateForEachKey() {
+        assertSame(EffectiveTime.toDate(20181031), EffectiveTime.toDate(20181031));
+    }
+
+    @Test
+    public void convertsToFhirDates() {
+        assertEquals("2018-10-31", EffectiveTime.toDateType(20181031).getValueAsString());
+    }
+}
@@ -15,6 +15,7 @@ import org.apache.commons.cli.ParseException;
 
 import au.gov.digitalhealth.medserve.transform.processor.FhirServerMedicationResourceProcessor;
 import au.gov.digitalhealth.medserve.transform.processor.FileWritingMedicationResourceProcessor;
+import au.gov.digitalhealth.medserve.transform.processor.MedicationResourceProcessor;
 
 public class RxNorm2Fhir {
 
@@ -64,12 +65,17 @@ public class RxNorm2Fhir {
             }
 
             if (line.hasOption(FHIR_OPTION)) {
-                generator.process(new FhirServerMedicationResourceProcessor(line.getOptionValue(FHIR_OPTION), 200000));
+                try (MedicationResourceProcessor processor =
+                        new FhirServerMedicationResourceProcessor(line.getOptionValue(FHIR_OPTION), 200000)) {
+                    generator.process(processor);
+                }
             }
 
             if (line.hasOption(OUTPUT_FILE_OPTION)) {
-                generator.process(new FileWritingMedicationResourceProcessor(
-                    FileSystems.getDefault().getPath(line.getOptionValue(OUTPUT_FILE_OPTION))));
+                try (MedicationResourceProcessor processor = new FileWritingMedicationResourceProcessor(
+                    FileSystems.getDefault().getPath(line.getOptionValue(OUTPUT_FILE_OPTION)))) {
+                    generator.process(processor);
+                }
             }
 
         } catch (ParseException exp) {
@@ -1,51 +1,387 @@
 package au.gov.digitalhealth.medserve.transform.processor;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import ca.uhn.fhir.rest.client.api.IGenericClient;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.Bundle.BundleType;
 import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
-
-import au.gov.digitalhealth.medserve.transform.util.LoggingTimer;
-
+import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 
+import au.gov.digitalhealth.medserve.transform.util.FhirContextUtils;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.FhirTerser;
 
+/**
+ * PUTs the resources to a FHIR server in transaction bundles of up to the batch size. Bundles are sent on a pool of
+ * threads with at most the in flight number outstanding at once, the calling thread waits for one to finish before
+ * sending more. A bundle with resources referencing resources in bundles still being sent isn't sent until those have
+ * been accepted, so the server gets resources after the ones they reference as they would be sent one at a time.
+ * Bundles that fail because the server couldn't be reached, is overloaded or has an internal error are retried with an
+ * exponential backoff, any other failure or running out of retries fails the upload. Throughput is logged when the
+ * processor is closed.
+ * <p>
+ * If given a checkpoint file the id and content hash of each resource is appended to it once the server has accepted
+ * the resource's bundle. Resources already in the checkpoint with the same content hash aren't sent again, so an
+ * upload that failed part way can be restarted, and a new release pushed to a server loaded from an earlier one only
+ * sends the resources that changed. The checkpoint must be deleted if the server is emptied or replaced.
+ */
 public class FhirServerMedicationResourceProcessor implements MedicationResourceProcessor {
 
     private static final Logger logger =
             Logger.getLogger(FhirServerMedicationResourceProcessor.class.getCanonicalName());
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_IN_FLIGHT = 4;
+
+    public static final int DEFAULT_RETRIES = 3;
+
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 1000;
+
     private IGenericClient client;
+    private int batchSize;
+    private int inFlight;
+    private int retries;
+    private long retryBackoffMillis;
+    private ExecutorService executor;
+    private Semaphore permits;
+    private AtomicReference<Throwable> failure = new AtomicReference<>();
+    private Bundle bundle;
+    private List<Long> bundleHashes;
+    /** the sending of the bundles holding resources the bundle being filled references */
+    private Set<CompletableFuture<Void>> bundleDependencies;
+    /** the sending of the bundle holding each resource until the server has accepted it, by resource type and id */
+    private Map<String, CompletableFuture<Void>> sending = new ConcurrentHashMap<>();
+    private FhirTerser terser;
+    private Map<String, Long> checkpointHashes;
+    private FileChannel checkpoint;
+    private IParser parser;
+    private MessageDigest md5;
+    private long startTime = System.currentTimeMillis();
+    private LongAdder uploadedResources = new LongAdder();
+    private LongAdder skippedResources = new LongAdder();
+    private LongAdder uploadedBundles = new LongAdder();
+    private LongAdder retriedBundles = new LongAdder();
+    private LongAdder requestMillis = new LongAdder();
 
     public FhirServerMedicationResourceProcessor(String url, int timeout) throws IOException {
-        FhirContext ctx = FhirContext.forDstu3();
+        this(url, timeout, DEFAULT_BATCH_SIZE, DEFAULT_IN_FLIGHT, DEFAULT_RETRIES, DEFAULT_RETRY_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param batchSize maximum number of resources in each transaction bundle
+     * @param inFlight maximum number of bundles being sent at once
+     * @param retries number of times a bundle is retried after a failure that may be temporary
+     * @param retryBackoffMillis wait before the first retry of a bundle, doubled for each retry after that
+     */
+    public FhirServerMedicationResourceProcessor(String url, int timeout, int batchSize, int inFlight, int retries,
+            long retryBackoffMillis) throws IOException {
+        this(url, timeout, batchSize, inFlight, retries, retryBackoffMillis, null);
+    }
+
+    /**
+     * @param checkpointFile file recording the resources the server has accepted, created if it doesn't exist, or null
+     *            to send every resource
+     */
+    public FhirServerMedicationResourceProcessor(String url, int timeout, int batchSize, int inFlight, int retries,
+            long retryBackoffMillis, Path checkpointFile) throws IOException {
+        if (batchSize < 1 || inFlight < 1) {
+            throw new IllegalArgumentException(
+                "Batch size and in flight bundles must be positive, not " + batchSize + " and " + inFlight);
+        }
+        this.batchSize = batchSize;
+        this.inFlight = inFlight;
+        this.retries = retries;
+        this.retryBackoffMillis = retryBackoffMillis;
+
+        FhirContext ctx = FhirContextUtils.createContext();
         ctx.getRestfulClientFactory().setConnectionRequestTimeout(timeout);
         ctx.getRestfulClientFactory().setSocketTimeout(timeout);
+        ctx.getRestfulClientFactory().setPoolMaxTotal(inFlight);
+        ctx.getRestfulClientFactory().setPoolMaxPerRoute(inFlight);
         client = ctx.newRestfulGenericClient(url);
-        logger.info("FHIR client created to " + url + " with timeout " + timeout);
+        terser = ctx.newTerser();
+        executor = Executors.newFixedThreadPool(inFlight);
+        permits = new Semaphore(inFlight);
+        logger.info("FHIR client created to " + url + " with timeout " + timeout + ", " + batchSize
+                + " resources per transaction and " + inFlight + " transactions in flight");
+
+        if (checkpointFile != null) {
+            parser = ctx.newJsonParser();
+            parser.setPrettyPrint(false);
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("MD5 not supported", e);
+            }
+            checkpointHashes = readCheckpoint(checkpointFile);
+            checkpoint = FileChannel.open(checkpointFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            logger.info("Read " + checkpointHashes.size() + " uploaded resources from checkpoint " + checkpointFile);
+        }
+    }
+
+    /**
+     * Reads the last hash recorded for each resource, then rewrites the file with just those so it doesn't grow with
+     * every upload and any line cut short by an earlier failure is dropped
+     */
+    private static Map<String, Long> readCheckpoint(Path file) throws IOException {
+        Map<String, Long> hashes = new HashMap<>();
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    try {
+                        if (tab > 0) {
+                            hashes.put(line.substring(0, tab), Long.parseUnsignedLong(line.substring(tab + 1), 16));
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.warning("Ignoring unreadable checkpoint line " + line);
+                    }
+                }
+            }
+        } else if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+                writeCheckpointLine(writer, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hashes;
+    }
+
+    private static void writeCheckpointLine(Appendable writer, String key, long hash) throws IOException {
+        writer.append(key).append('\t').append(Long.toHexString(hash)).append('\n');
     }
 
     @Override
     public void processResources(List<? extends Resource> resources) throws IOException {
-        try (
-                LoggingTimer timer = new LoggingTimer(logger,
-                    "Submitting " + resources.size() + " resources to FHIR server as a transaction")) {
-            for (Resource resource : resources) {
-                Bundle bundle = new Bundle();
+        checkFailure();
+        for (Resource resource : resources) {
+            String key = resource.getResourceType().name() + "/" + resource.getId();
+            long hash = 0;
+            if (checkpoint != null) {
+                hash = contentHash(resource);
+                Long uploaded = checkpointHashes.get(key);
+                if (uploaded != null && uploaded == hash) {
+                    skippedResources.increment();
+                    continue;
+                }
+            }
+            if (bundle == null) {
+                bundle = new Bundle();
                 bundle.setType(BundleType.TRANSACTION);
-                bundle.addEntry()
-                    .setFullUrl(resource.getId())
-                    .setResource(resource)
-                    .getRequest()
-                    .setUrl(resource.getResourceType().name() + "/" + resource.getId())
-                    .setMethod(HTTPVerb.PUT);
-                client.transaction().withBundle(bundle).execute();
+                bundleHashes = new ArrayList<>(batchSize);
+                bundleDependencies = new HashSet<>();
+            }
+            for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                CompletableFuture<Void> referenced = sending.get(reference.getReference());
+                if (referenced != null) {
+                    bundleDependencies.add(referenced);
+                }
+            }
+            bundle.addEntry()
+                .setFullUrl(resource.getId())
+                .setResource(resource)
+                .getRequest()
+                .setUrl(key)
+                .setMethod(HTTPVerb.PUT);
+            bundleHashes.add(hash);
+            if (bundle.getEntry().size() >= batchSize) {
+                send();
             }
         }
     }
+
+    private long contentHash(Resource resource) {
+        md5.reset();
+        return ByteBuffer.wrap(md5.digest(parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8)))
+            .getLong();
+    }
+
+    private void send() throws IOException {
+        Bundle batch = bundle;
+        List<Long> hashes = bundleHashes;
+        Set<CompletableFuture<Void>> dependencies = bundleDependencies;
+        bundle = null;
+        bundleHashes = null;
+        bundleDependencies = null;
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting to send resources to FHIR server", e);
+        }
+
+        // a bundle that fails fails the bundles waiting for it, without them being sent
+        CompletableFuture<Void> sent = CompletableFuture
+            .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+            .thenRunAsync(() -> {
+                try {
+                    sendWithRetries(batch);
+                    if (checkpoint != null) {
+                        recordCheckpoint(batch, hashes);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted sending resources to FHIR server");
+                }
+            }, executor);
+        batch.getEntry().forEach(entry -> sending.put(entry.getRequest().getUrl(), sent));
+        sent.whenComplete((result, e) -> {
+            if (e != null) {
+                failure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+            }
+            batch.getEntry().forEach(entry -> sending.remove(entry.getRequest().getUrl(), sent));
+            permits.release();
+        });
+    }
+
+    private void sendWithRetries(Bundle batch) throws InterruptedException {
+        for (int attempt = 0;; attempt++) {
+            long start = System.currentTimeMillis();
+            try {
+                client.transaction().withBundle(batch).execute();
+                requestMillis.add(System.currentTimeMillis() - start);
+                uploadedBundles.increment();
+                uploadedResources.add(batch.getEntry().size());
+                return;
+            } catch (BaseServerResponseException e) {
+                if (attempt >= retries || !isRetryable(e)) {
+                    throw e;
+                }
+                long backoff = retryBackoffMillis << attempt;
+                logger.log(Level.WARNING, "Failed sending " + batch.getEntry().size()
+                        + " resources to FHIR server, retrying in " + backoff + "ms", e);
+                retriedBundles.increment();
+                Thread.sleep(backoff);
+            }
+        }
+    }
+
+    /**
+     * Forced to disk after each bundle so the checkpoint holds everything the server accepted if the upload, or the
+     * machine, then fails
+     */
+    private synchronized void recordCheckpoint(Bundle batch, List<Long> hashes) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < hashes.size(); i++) {
+            writeCheckpointLine(lines, batch.getEntry().get(i).getRequest().getUrl(), hashes.get(i));
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            checkpoint.write(buffer);
+        }
+        checkpoint.force(false);
+    }
+
+    /**
+     * @return true if the failure may not happen again - the server couldn't be reached, is overloaded or failed
+     *         internally
+     */
+    private static boolean isRetryable(BaseServerResponseException e) {
+        return e instanceof FhirClientConnectionException || e.getStatusCode() == 429 || e.getStatusCode() >= 500;
+    }
+
+    /**
+     * Waits for the executor to finish, carrying on if interrupted as a sender interrupted while writing the
+     * checkpoint would close it
+     *
+     * @return true if interrupted while waiting
+     */
+    private boolean awaitSent() {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Failed sending resources to FHIR server", e);
+        }
+    }
+
+    /**
+     * Sends the last partial bundle and waits for all of the bundles to be sent. Bundles already sent are always
+     * waited for, even after a failure, so the checkpoint isn't closed while they are being recorded in it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            checkFailure();
+            if (bundle != null) {
+                send();
+            }
+            // bundles waiting on others are only handed to the executor once those are sent
+            permits.acquire(inFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for resources to be sent to FHIR server", e);
+        } finally {
+            executor.shutdown();
+            boolean interrupted = awaitSent();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkFailure();
+
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        long bundles = uploadedBundles.sum();
+        logger.info("Sent " + uploadedResources + " resources to FHIR server in " + bundles + " transactions, "
+                + retriedBundles + " retries, " + (uploadedResources.sum() * 1000 / elapsed) + " resources/s, "
+                + (bundles == 0 ? 0 : requestMillis.sum() / bundles) + "ms per transaction, " + skippedResources
+                + " unchanged resources skipped");
+    }
 }
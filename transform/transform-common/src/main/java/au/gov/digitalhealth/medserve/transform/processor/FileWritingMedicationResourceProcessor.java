@@ -4,11 +4,17 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +28,7 @@ import org.hl7.fhir.dstu3.model.Substance;
 import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
 import au.gov.digitalhealth.medserve.extension.MedicationType;
 import au.gov.digitalhealth.medserve.transform.util.FhirCodeSystemUri;
+import au.gov.digitalhealth.medserve.transform.util.FhirContextUtils;
 import au.gov.digitalhealth.medserve.transform.util.FileUtils;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
@@ -29,27 +36,66 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.ValidationResult;
 
+/**
+ * Writes each resource to its own pretty printed JSON file in a directory per type, with a fail directory for
+ * resources that fail validation. Resources are encoded once on the calling thread. Those chosen for validation by
+ * the {@link ValidationMode} are validated and written on a pool of threads, the rest are written straight away. A
+ * summary of the resources written, validated and failed for each type is logged and written to
+ * {@value #SUMMARY_FILE_NAME} in the output directory when the processor is closed.
+ */
 public class FileWritingMedicationResourceProcessor implements MedicationResourceProcessor {
 
     private static final Logger logger =
             Logger.getLogger(FileWritingMedicationResourceProcessor.class.getCanonicalName());
+
+    private static final int QUEUE_SIZE_PER_THREAD = 256;
+
+    static final String SUMMARY_FILE_NAME = "validation-summary.txt";
+
     private IParser parser;
-    private FhirValidator validator;
+    private ThreadLocal<FhirValidator> validator;
     private Path outputPath;
-    private Set<String> types = new HashSet<>();
+    private ValidationMode validationMode;
+    private int validationParameter;
+    private ThreadPoolExecutor executor;
+    private AtomicReference<Throwable> failure = new AtomicReference<>();
+    /** counts by type, a type's output directories are created when it is added */
+    private Map<String, TypeSummary> summaries = new ConcurrentSkipListMap<>();
     private Collection<String> baseSystems =
             Arrays.asList(FhirCodeSystemUri.SNOMED_CT_SYSTEM_URI.getUri(), FhirCodeSystemUri.RXNORM_URI.getUri());
 
     public FileWritingMedicationResourceProcessor(Path outputPath) throws IOException {
+        this(outputPath, ValidationMode.FULL, 100, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param validationParameter the percentage of resources validated for {@link ValidationMode#SAMPLED}, or the
+     *            number of resources of each type for {@link ValidationMode#FIRST_PER_TYPE}, unused for
+     *            {@link ValidationMode#FULL}
+     * @param threads number of threads validating and writing the resources chosen for validation
+     */
+    public FileWritingMedicationResourceProcessor(Path outputPath, ValidationMode validationMode,
+            int validationParameter, int threads) throws IOException {
+        if (validationParameter < 0) {
+            throw new IllegalArgumentException("Validation parameter must not be negative, not " + validationParameter);
+        }
         this.outputPath = outputPath;
+        this.validationMode = validationMode;
+        this.validationParameter = validationParameter;
 
-        parser = FhirContext.forDstu3().newJsonParser();
+        FhirContext context = FhirContextUtils.createContext();
+        parser = context.newJsonParser();
         parser.setPrettyPrint(true);
-        validator = FhirContext.forDstu3().newValidator();
+        validator = ThreadLocal.withInitial(() -> context.newValidator());
+
+        // a full queue makes the calling thread validate the resource itself, which holds back the generator
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * QUEUE_SIZE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     @Override
     public void processResources(List<? extends Resource> resources) throws IOException {
+        checkFailure();
         for (Resource resource : resources) {
             writeResource(resource, outputPath);
         }
@@ -58,30 +104,115 @@ public class FileWritingMedicationResourceProcessor implements MedicationResourc
     private void writeResource(BaseResource resource, Path basePath) throws IOException {
         String type = determineType(resource);
 
-        if (!types.contains(type)) {
-            types.add(type);
+        TypeSummary summary = summaries.get(type);
+        if (summary == null) {
             FileUtils.initialiseOutputDirectories(outputPath, type);
+            summary = new TypeSummary();
+            summaries.put(type, summary);
+        }
+
+        String fileName = getFileName(resource);
+        byte[] json;
+        try {
+            json = parser.encodeResourceToString(resource).getBytes();
+        } catch (DataFormatException e) {
+            logger.log(Level.SEVERE, "Failed writing out resource " + type + " " + fileName, e);
+            return;
+        }
+        summary.written.increment();
+
+        if (isValidated(resource, summary)) {
+            TypeSummary typeSummary = summary;
+            executor.execute(() -> {
+                try {
+                    validateAndWrite(resource, basePath, type, fileName, json, typeSummary);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        } else {
+            write(FileUtils.getSuccessPath(basePath, type).resolve(fileName), json);
+        }
+    }
+
+    private boolean isValidated(BaseResource resource, TypeSummary summary) {
+        switch (validationMode) {
+            case FULL:
+                return true;
+            case SAMPLED:
+                return samplePercentile(resource.getIdElement().getIdPart()) < validationParameter;
+            case FIRST_PER_TYPE:
+                return summary.written.sum() <= validationParameter;
+            default:
+                throw new RuntimeException("Unknown validation mode " + validationMode);
+        }
+    }
+
+    /**
+     * @return 0 to 99 spread evenly over ids, which are often short runs of digits with similar string hashes
+     */
+    private static int samplePercentile(String id) {
+        long h = id.hashCode() * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % 100);
+    }
+
+    private void validateAndWrite(BaseResource resource, Path basePath, String type, String fileName, byte[] json,
+            TypeSummary summary) {
+        ValidationResult result = validator.get().validateWithResult(resource);
+        summary.validated.increment();
+
+        if (result.isSuccessful()) {
+            write(FileUtils.getSuccessPath(basePath, type).resolve(fileName), json);
+        } else {
+            summary.failed.increment();
+            byte[] messages = result.toString().getBytes();
+            byte[] content = Arrays.copyOf(json, json.length + messages.length);
+            System.arraycopy(messages, 0, content, json.length, messages.length);
+            write(FileUtils.getFailPath(basePath, type).resolve(fileName), content);
+            logger.warning("Resource " + fileName + " is not valid!!!");
         }
+    }
 
-        ValidationResult result = validator.validateWithResult(resource);
+    private void write(Path file, byte[] content) {
+        try {
+            Files.write(file, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed writing out resource " + file, e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Failed validating resources", e);
+        }
+    }
 
+    /**
+     * Waits for the resources being validated to be written, then writes the summary
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
         try {
-            String fileName = getFileName(resource);
-            if (result.isSuccessful()) {
-                Files.write(FileUtils.getSuccessPath(basePath, type).resolve(fileName),
-                    parser.encodeResourceToString(resource).getBytes(), StandardOpenOption.CREATE_NEW,
-                    StandardOpenOption.WRITE);
-            } else {
-                Files.write(FileUtils.getFailPath(basePath, type).resolve(fileName),
-                    parser.encodeResourceToString(resource).getBytes(), StandardOpenOption.CREATE_NEW,
-                    StandardOpenOption.WRITE);
-                Files.write(FileUtils.getFailPath(basePath, type).resolve(fileName),
-                    result.toString().getBytes(), StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-                logger.warning("Resource " + fileName + " is not valid!!!");
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting for the queued resources
             }
-        } catch (DataFormatException | IOException e) {
-            logger.log(Level.SEVERE, "Failed writing out resource " + parser.encodeResourceToString(resource), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for resources to be validated", e);
         }
+        checkFailure();
+
+        List<String> lines = new ArrayList<>();
+        lines.add("Validation mode " + validationMode
+                + (validationMode == ValidationMode.FULL ? "" : " " + validationParameter));
+        lines.add("type\twritten\tvalidated\tfailed");
+        summaries.forEach((type, summary) -> lines.add(type + "\t" + summary.written + "\t" + summary.validated
+                + "\t" + summary.failed));
+        Files.createDirectories(outputPath);
+        Files.write(outputPath.resolve(SUMMARY_FILE_NAME), lines);
+        logger.info(String.join(System.lineSeparator(), lines));
     }
 
     private String determineType(BaseResource resource) {
@@ -133,4 +264,13 @@ public class FileWritingMedicationResourceProcessor implements MedicationResourc
 
         return name + "_" + code;
     }
+
+    /**
+     * Numbers of resources of a type
+     */
+    private static final class TypeSummary {
+        private final LongAdder written = new LongAdder();
+        private final LongAdder validated = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+    }
 }
@@ -1,10 +1,18 @@
 package au.gov.digitalhealth.medserve.transform.processor;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
 
 import org.hl7.fhir.dstu3.model.Resource;
 
-public interface MedicationResourceProcessor {
+public interface MedicationResourceProcessor extends Closeable {
     void processResources(List<? extends Resource> resources) throws IOException;
+
+    /**
+     * Called once all resources have been processed to finish any output, does nothing by default.
+     */
+    @Override
+    default void close() throws IOException {
+    }
 }
@@ -0,0 +1,142 @@
+package au.gov.digitalhealth.medserve.transform.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.dstu3.model.Resource;
+
+import au.gov.digitalhealth.medserve.transform.util.FhirContextUtils;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes the resources as FHIR Bulk Data style NDJSON, each resource encoded compactly on its own line in a file per
+ * resource type. Files are named &lt;type&gt;.&lt;part&gt;.ndjson, or .ndjson.gz if compressed, and a new part is
+ * started once a file reaches the rollover size so consumers can load large releases in pieces. Any NDJSON files
+ * already in the output directory are deleted so parts from an earlier run aren't mixed in.
+ * <p>
+ * Unlike {@link FileWritingMedicationResourceProcessor} resources aren't validated.
+ */
+public class NdjsonMedicationResourceProcessor implements MedicationResourceProcessor {
+
+    private static final Logger logger =
+            Logger.getLogger(NdjsonMedicationResourceProcessor.class.getCanonicalName());
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private IParser parser;
+    private Path outputPath;
+    private boolean gzip;
+    private long rolloverBytes;
+    private Map<String, TypeFile> files = new TreeMap<>();
+
+    public NdjsonMedicationResourceProcessor(Path outputPath) throws IOException {
+        this(outputPath, false, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param gzip whether to gzip the files
+     * @param rolloverBytes uncompressed size in bytes after which a new file is started for the type
+     */
+    public NdjsonMedicationResourceProcessor(Path outputPath, boolean gzip, long rolloverBytes) throws IOException {
+        if (rolloverBytes < 1) {
+            throw new IllegalArgumentException("Rollover size must be positive, not " + rolloverBytes);
+        }
+        this.outputPath = outputPath;
+        this.gzip = gzip;
+        this.rolloverBytes = rolloverBytes;
+
+        parser = FhirContextUtils.createContext().newJsonParser();
+        parser.setPrettyPrint(false);
+
+        Files.createDirectories(outputPath);
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(outputPath, "*.ndjson{,.gz}")) {
+            for (Path file : existing) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Override
+    public void processResources(List<? extends Resource> resources) throws IOException {
+        for (Resource resource : resources) {
+            byte[] line = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+            TypeFile file = files.get(resource.fhirType());
+            if (file == null) {
+                file = new TypeFile(resource.fhirType());
+                files.put(resource.fhirType(), file);
+            }
+            file.write(line);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (TypeFile file : files.values()) {
+            try {
+                file.close();
+                logger.info("Wrote " + file.resources + " " + file.type + " resources to " + file.part + " files");
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The current part of the output for one resource type
+     */
+    private final class TypeFile {
+        private final String type;
+        private int part;
+        private long resources;
+        private OutputStream out;
+        private long bytes;
+
+        private TypeFile(String type) {
+            this.type = type;
+        }
+
+        private void write(byte[] line) throws IOException {
+            if (out == null || (bytes > 0 && bytes + line.length + 1 > rolloverBytes)) {
+                close();
+                open();
+            }
+            out.write(line);
+            out.write('\n');
+            bytes += line.length + 1;
+            resources++;
+        }
+
+        private void open() throws IOException {
+            part++;
+            Path file = outputPath.resolve(type + "." + part + (gzip ? ".ndjson.gz" : ".ndjson"));
+            OutputStream stream = Files.newOutputStream(file);
+            out = new BufferedOutputStream(gzip ? new GZIPOutputStream(stream, BUFFER_SIZE) : stream, BUFFER_SIZE);
+            bytes = 0;
+        }
+
+        private void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package au.gov.digitalhealth.medserve.transform.processor;
+
+/**
+ * Which resources {@link FileWritingMedicationResourceProcessor} validates, resources that aren't validated are
+ * written out as successful
+ */
+public enum ValidationMode {
+    /** every resource */
+    FULL,
+    /** the percentage of resources given by the mode's parameter, chosen by resource id so runs pick the same ones */
+    SAMPLED,
+    /** the first resources of each type, as many as the mode's parameter */
+    FIRST_PER_TYPE;
+}
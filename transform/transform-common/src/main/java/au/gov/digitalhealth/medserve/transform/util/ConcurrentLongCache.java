@@ -0,0 +1,119 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongFunction;
+
+/**
+ * Cache of values computed once per primitive long key, safe to use from many threads. Keys are spread over lock
+ * striped {@link LongObjectMap}s, but values are computed outside the lock so a computation may itself use the cache
+ * for other keys. Threads asking for a key that is being computed by another thread wait for that value rather than
+ * computing it again.
+ * <p>
+ * A computation must not ask for its own key, directly or through other threads' computations.
+ */
+public class ConcurrentLongCache<V> {
+
+    private static final int STRIPES = 64;
+
+    private final LongObjectMap<Object>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongCache() {
+        stripes = new LongObjectMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LongObjectMap<>();
+        }
+    }
+
+    /**
+     * @return the cached value for the key, or null if it hasn't been computed yet
+     */
+    @SuppressWarnings("unchecked")
+    public V getIfPresent(long key) {
+        LongObjectMap<Object> stripe = getStripe(key);
+        Object entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+        }
+        return entry instanceof Pending ? null : (V) entry;
+    }
+
+    /**
+     * @return the cached value for the key, calling the function to compute it if no thread has yet
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(long key, LongFunction<? extends V> function) {
+        LongObjectMap<Object> stripe = getStripe(key);
+        Object entry;
+        Pending<V> pending = null;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+            if (entry == null) {
+                pending = new Pending<>();
+                stripe.put(key, pending);
+            }
+        }
+
+        if (pending != null) {
+            return compute(stripe, key, pending, function);
+        } else if (entry instanceof Pending) {
+            Pending<V> other = (Pending<V>) entry;
+            if (other.owner == Thread.currentThread()) {
+                throw new IllegalStateException("Value for " + key + " was asked for while computing it");
+            }
+            try {
+                return other.future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return (V) entry;
+    }
+
+    private V compute(LongObjectMap<Object> stripe, long key, Pending<V> pending,
+            LongFunction<? extends V> function) {
+        V value;
+        try {
+            value = function.apply(key);
+        } catch (RuntimeException | Error e) {
+            // forget the failed computation so the next caller tries again
+            synchronized (stripe) {
+                stripe.put(key, null);
+            }
+            pending.future.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+        pending.future.complete(value);
+        return value;
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongObjectMap<Object> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private LongObjectMap<Object> getStripe(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58)];
+    }
+
+    /**
+     * Placeholder for a value another thread is computing
+     */
+    private static final class Pending<V> {
+        private final Thread owner = Thread.currentThread();
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+    }
+}
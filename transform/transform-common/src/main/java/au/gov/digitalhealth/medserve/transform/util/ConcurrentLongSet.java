@@ -0,0 +1,77 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free set of primitive longs for claiming ids from many threads - {@link #add(long)} returns true to exactly
+ * one of the threads adding the same value. Values are held in a fixed size open addressing table sized up front
+ * from the expected number of values, values can't be removed and 0 can't be added.
+ */
+public class ConcurrentLongSet {
+
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param expectedSize the number of values the set needs to hold, it is sized to hold twice this
+     */
+    public ConcurrentLongSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 4 - 1);
+        slots = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return true if the value wasn't already in the set
+     * @throws IllegalStateException if the set is full
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            throw new IllegalArgumentException("0 can't be added to the set");
+        }
+        int slot = hash(value) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = slots.get(slot);
+            if (current == EMPTY) {
+                if (slots.compareAndSet(slot, EMPTY, value)) {
+                    size.incrementAndGet();
+                    return true;
+                }
+                // lost the slot to another thread, which may have been adding the same value
+                current = slots.get(slot);
+            }
+            if (current == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        throw new IllegalStateException("Set is full with " + size.get() + " values");
+    }
+
+    public boolean contains(long value) {
+        int slot = hash(value) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long current = slots.get(slot);
+            if (current == value) {
+                return value != EMPTY;
+            } else if (current == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,105 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reads delimited text files such as RF2, RRF and the PBS extracts a block at a time into a reusable character
+ * buffer, handing each line to a callback as a {@link DelimitedRow} over that buffer. Apart from the buffer growing
+ * to fit the longest line no objects are created per line, fields are only copied out when the callback asks for a
+ * String.
+ * <p>
+ * Lines end with either \n or \r\n, and a final line without a line ending is still read. Empty lines are passed to
+ * the callback as a row with one empty field, as {@link Files#lines(Path)} followed by {@link String#split} would.
+ */
+public class DelimitedFileReader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final char delimiter;
+    private final boolean hasHeader;
+    private final int bufferSize;
+
+    public DelimitedFileReader(char delimiter, boolean hasHeader) {
+        this(delimiter, hasHeader, DEFAULT_BUFFER_SIZE);
+    }
+
+    public DelimitedFileReader(char delimiter, boolean hasHeader, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive, was " + bufferSize);
+        }
+        this.delimiter = delimiter;
+        this.hasHeader = hasHeader;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Reads the file at the path, which may be in a zip file system, passing every line after the header to the
+     * consumer
+     *
+     * @return the number of rows passed to the consumer
+     */
+    public long read(Path path, Consumer<DelimitedRow> consumer) throws IOException {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)) {
+            return read(reader, consumer);
+        }
+    }
+
+    public long read(Reader reader, Consumer<DelimitedRow> consumer) throws IOException {
+        DelimitedRow row = new DelimitedRow();
+        char[] buffer = new char[bufferSize];
+        int length = 0;
+        long rows = 0;
+        boolean skipLine = hasHeader;
+        boolean endOfInput = false;
+
+        while (!endOfInput) {
+            int scanFrom = length;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = reader.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                length += read;
+            }
+
+            int lineStart = 0;
+            for (int i = scanFrom; i < length; i++) {
+                if (buffer[i] == '\n') {
+                    if (!skipLine) {
+                        row.reset(buffer, lineStart, trimCarriageReturn(buffer, lineStart, i), delimiter);
+                        consumer.accept(row);
+                        rows++;
+                    }
+                    skipLine = false;
+                    lineStart = i + 1;
+                }
+            }
+
+            if (endOfInput) {
+                if (lineStart < length && !skipLine) {
+                    row.reset(buffer, lineStart, trimCarriageReturn(buffer, lineStart, length), delimiter);
+                    consumer.accept(row);
+                    rows++;
+                }
+            } else if (lineStart > 0) {
+                // move the partial last line to the start of the buffer and read the rest of it after it
+                System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                length -= lineStart;
+            }
+        }
+        return rows;
+    }
+
+    private static int trimCarriageReturn(char[] buffer, int start, int end) {
+        return end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+    }
+}
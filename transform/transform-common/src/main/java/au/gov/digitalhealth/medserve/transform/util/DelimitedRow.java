@@ -0,0 +1,148 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import java.util.Arrays;
+
+/**
+ * A view of one row of a delimited file read by {@link DelimitedFileReader}. The same instance is reused for every
+ * row of a file, so it must not be kept beyond the callback it is passed to - copy out anything needed with
+ * {@link #getString(int)}. The numeric accessors parse the field in place without creating any objects.
+ */
+public final class DelimitedRow {
+
+    private char[] buffer;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int size;
+
+    DelimitedRow() {
+    }
+
+    /**
+     * Splits the characters from start to end of the buffer into fields, keeping trailing empty fields as
+     * {@link String#split(String, int)} does with a negative limit
+     */
+    void reset(char[] buffer, int start, int end, char delimiter) {
+        this.buffer = buffer;
+        this.size = 0;
+        int fieldStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == delimiter) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, end);
+    }
+
+    private void addField(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * @return the number of fields in the row
+     */
+    public int size() {
+        return size;
+    }
+
+    public String getString(int field) {
+        checkField(field);
+        return new String(buffer, starts[field], ends[field] - starts[field]);
+    }
+
+    public boolean isEmpty(int field) {
+        checkField(field);
+        return starts[field] == ends[field];
+    }
+
+    /**
+     * @return true if the field is exactly the specified value
+     */
+    public boolean equals(int field, String value) {
+        checkField(field);
+        int start = starts[field];
+        int length = ends[field] - start;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the field as a decimal long, an optional leading minus sign followed by digits
+     *
+     * @throws NumberFormatException if the field isn't a number or doesn't fit in a long
+     */
+    public long getLong(int field) {
+        checkField(field);
+        int start = starts[field];
+        int end = ends[field];
+        boolean negative = start < end && buffer[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("Field " + field + " is not a number: '" + getString(field) + "'");
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Field " + field + " is not a number: '" + getString(field) + "'");
+            }
+            // accumulate negatively so Long.MIN_VALUE can be parsed
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Field " + field + " is out of range: '" + getString(field) + "'");
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative && result == Long.MIN_VALUE) {
+            throw new NumberFormatException("Field " + field + " is out of range: '" + getString(field) + "'");
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses the field as a decimal int
+     *
+     * @throws NumberFormatException if the field isn't a number or doesn't fit in an int
+     */
+    public int getInt(int field) {
+        long result = getLong(field);
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Field " + field + " is out of range: '" + getString(field) + "'");
+        }
+        return (int) result;
+    }
+
+    /**
+     * @return the fields of the row copied into a new array
+     */
+    public String[] toArray() {
+        String[] result = new String[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = getString(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.join("|", toArray());
+    }
+
+    private void checkField(int field) {
+        if (field >= size) {
+            throw new ArrayIndexOutOfBoundsException(field);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import org.hl7.fhir.dstu3.model.Organization;
+
+import au.gov.digitalhealth.medserve.extension.ExtendedMedication;
+import au.gov.digitalhealth.medserve.extension.ExtendedSubstance;
+import ca.uhn.fhir.context.FhirContext;
+
+public class FhirContextUtils {
+
+    private FhirContextUtils() {
+    }
+
+    /**
+     * Creates a DSTU3 context with the medserve resource types already scanned. HAPI binds Reference typed children
+     * to whichever reference type it finds first among the types known when it scans them, so once ExtendedReference
+     * has been scanned plain Reference children of types scanned afterwards can end up bound to it. Scanning the
+     * types up front in a fixed order stops that depending on which resource a processor happens to get first.
+     */
+    public static FhirContext createContext() {
+        FhirContext context = FhirContext.forDstu3();
+        context.getResourceDefinition(ExtendedSubstance.class);
+        context.getResourceDefinition(Organization.class);
+        context.getResourceDefinition(ExtendedMedication.class);
+        return context;
+    }
+}
@@ -51,8 +51,18 @@ public class FileUtils {
         return basePath.getFileSystem().getPath(basePath.toString(), type, "fail");
     }
 
+    /**
+     * Reads the delimited file passing each row after the header to the consumer as a String array. Delimiters that
+     * are a single character, or a single character in a regular expression character class like "[|]", are read with
+     * a {@link DelimitedFileReader}, other delimiters are treated as a regular expression for {@link String#split}.
+     */
     public static void readFile(Path path, Consumer<String[]> consumer, boolean hasHeader, String delimiter)
             throws IOException {
+        Character singleCharacter = getSingleCharacterDelimiter(delimiter);
+        if (singleCharacter != null) {
+            readFile(path, row -> consumer.accept(row.toArray()), hasHeader, singleCharacter.charValue());
+            return;
+        }
         Stream<String> stream = Files.lines(path);
         if (hasHeader) {
             stream = stream.skip(1);
@@ -62,6 +72,26 @@ public class FileUtils {
         logger.info("Processed " + path);
     }
 
+    /**
+     * Reads the delimited file passing each row after the header to the consumer. The row passed is reused for the
+     * next line, see {@link DelimitedRow}.
+     */
+    public static void readFile(Path path, Consumer<DelimitedRow> consumer, boolean hasHeader, char delimiter)
+            throws IOException {
+        long rows = new DelimitedFileReader(delimiter, hasHeader).read(path, consumer);
+        logger.info("Processed " + rows + " rows from " + path);
+    }
+
+    private static Character getSingleCharacterDelimiter(String delimiter) {
+        if (delimiter.length() == 1 && ".$|()[{^?*+\\".indexOf(delimiter.charAt(0)) < 0) {
+            return delimiter.charAt(0);
+        } else if (delimiter.length() == 3 && delimiter.charAt(0) == '[' && delimiter.charAt(2) == ']'
+                && "^\\[]&-".indexOf(delimiter.charAt(1)) < 0) {
+            return delimiter.charAt(1);
+        }
+        return null;
+    }
+
     public static FileSystem getFileSystemForZipPath(Path path) throws IOException {
         return FileSystems.newFileSystem(
             URI.create("jar:file:" + path.toAbsolutePath().toString()),
@@ -0,0 +1,145 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map from primitive long keys, such as SNOMED CT ids, to values without boxing the keys. Entries are held in
+ * parallel arrays in insertion order so every key also gets a dense index from 0 to size - 1, which can be used to
+ * key plain arrays of other data about the entry. Lookups go through an open addressing table of those indexes.
+ * Entries can't be removed.
+ * <p>
+ * Not thread safe, but any number of threads can read the map once it is no longer being modified.
+ */
+public class LongObjectMap<V> {
+
+    public static final int NOT_FOUND = -1;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    /** index + 1 of the entry for each slot, 0 is an empty slot */
+    private int[] slots;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        int capacity = Math.max(expectedSize, 2);
+        keys = new long[capacity];
+        values = new Object[capacity];
+        slots = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) != NOT_FOUND;
+    }
+
+    public V get(long key) {
+        int index = indexOf(key);
+        return index == NOT_FOUND ? null : valueAt(index);
+    }
+
+    /**
+     * @return the dense index of the key, or {@link #NOT_FOUND}
+     */
+    public int indexOf(long key) {
+        int index = slots[findSlot(key)];
+        return index == 0 ? NOT_FOUND : index - 1;
+    }
+
+    /**
+     * @return the previous value for the key, or null if the key is new in which case it is given the next index
+     */
+    public V put(long key, V value) {
+        int slot = findSlot(key);
+        if (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            V previous = valueAt(index);
+            values[index] = value;
+            return previous;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return null;
+    }
+
+    public long keyAt(int index) {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        checkIndex(index);
+        return (V) values[index];
+    }
+
+    /**
+     * @return an unmodifiable view of the values in insertion order
+     */
+    public List<V> values() {
+        return new AbstractList<V>() {
+            @Override
+            public V get(int index) {
+                return valueAt(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int findSlot(long key) {
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        while (slots[slot] != 0 && keys[slots[slot] - 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hash(keys[index]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+        }
+    }
+}
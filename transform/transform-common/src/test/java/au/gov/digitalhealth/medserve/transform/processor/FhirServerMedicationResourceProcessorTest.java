@@ -0,0 +1,301 @@
+package au.gov.digitalhealth.medserve.transform.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Medication;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.Substance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import au.gov.digitalhealth.medserve.transform.util.FhirContextUtils;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+public class FhirServerMedicationResourceProcessorTest {
+
+    private static final int TIMEOUT = 10000;
+    private static final long BACKOFF_MILLIS = 50;
+
+    private StubFhirServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubFhirServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void sendsResourcesInTransactionsOfBatchSize() throws IOException {
+        try (FhirServerMedicationResourceProcessor processor = createProcessor(2, 1, 0)) {
+            processor.processResources(substances(1, 5));
+        }
+
+        assertEquals(Arrays.asList(Arrays.asList("Substance/1", "Substance/2"),
+            Arrays.asList("Substance/3", "Substance/4"), Arrays.asList("Substance/5")), server.accepted);
+    }
+
+    @Test
+    public void retriesOverloadedAndFailingServerWithBackoff() throws IOException {
+        server.statuses.add(429);
+        server.statuses.add(503);
+
+        try (FhirServerMedicationResourceProcessor processor = createProcessor(10, 1, 2)) {
+            processor.processResources(substances(1, 1));
+        }
+
+        assertEquals(Collections.singletonList(Collections.singletonList("Substance/1")), server.accepted);
+        assertEquals(3, server.arrivalNanos.size());
+        long firstWait = server.arrivalNanos.get(1) - server.arrivalNanos.get(0);
+        long secondWait = server.arrivalNanos.get(2) - server.arrivalNanos.get(1);
+        assertTrue("Waited " + firstWait + "ns", firstWait >= TimeUnit.MILLISECONDS.toNanos(BACKOFF_MILLIS));
+        assertTrue("Waited " + secondWait + "ns", secondWait >= TimeUnit.MILLISECONDS.toNanos(2 * BACKOFF_MILLIS));
+    }
+
+    @Test
+    public void failsOnceRetriesAreUsedUp() throws IOException {
+        server.statuses.addAll(Arrays.asList(503, 503, 503));
+
+        try {
+            try (FhirServerMedicationResourceProcessor processor = createProcessor(10, 1, 2)) {
+                processor.processResources(substances(1, 1));
+            }
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(3, server.arrivalNanos.size());
+        assertTrue(server.accepted.isEmpty());
+    }
+
+    @Test
+    public void doesNotRetryRejectedBundles() throws IOException {
+        server.statuses.add(400);
+
+        try {
+            try (FhirServerMedicationResourceProcessor processor = createProcessor(10, 1, 2)) {
+                processor.processResources(substances(1, 1));
+            }
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(1, server.arrivalNanos.size());
+    }
+
+    @Test
+    public void limitsTransactionsInFlight() throws IOException {
+        server.delayMillis = 50;
+
+        try (FhirServerMedicationResourceProcessor processor = createProcessor(1, 3, 0)) {
+            processor.processResources(substances(1, 20));
+        }
+
+        assertEquals(20, server.accepted.size());
+        assertTrue("Had " + server.maxConcurrent + " in flight", server.maxConcurrent.get() <= 3);
+    }
+
+    @Test
+    public void sendsBundlesAfterTheBundlesTheyReference() throws IOException {
+        // the referenced substance is slow to be accepted, the medication must still wait for it
+        server.delayMillis = 200;
+        server.delayedUrl = "Substance/1";
+
+        try (FhirServerMedicationResourceProcessor processor = createProcessor(1, 4, 0)) {
+            processor.processResources(substances(1, 1));
+            processor.processResources(Arrays.asList(medication(2, "Substance/1"), medication(3, null)));
+        }
+
+        assertEquals(3, server.accepted.size());
+        assertTrue(server.acceptedBeforeArrival.get("Medication/2").contains("Substance/1"));
+        assertFalse(server.acceptedBeforeArrival.get("Medication/3").contains("Substance/1"));
+    }
+
+    @Test
+    public void doesNotSendBundlesReferencingFailedBundles() throws IOException {
+        server.delayMillis = 100;
+        server.delayedUrl = "Substance/1";
+        server.statuses.add(400);
+
+        try {
+            try (FhirServerMedicationResourceProcessor processor = createProcessor(1, 4, 0)) {
+                processor.processResources(substances(1, 1));
+                processor.processResources(Collections.singletonList(medication(2, "Substance/1")));
+            }
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertFalse(server.acceptedBeforeArrival.containsKey("Medication/2"));
+    }
+
+    private FhirServerMedicationResourceProcessor createProcessor(int batchSize, int inFlight, int retries)
+            throws IOException {
+        return new FhirServerMedicationResourceProcessor(server.getUrl(), TIMEOUT, batchSize, inFlight, retries,
+            BACKOFF_MILLIS);
+    }
+
+    private static List<Resource> substances(int first, int last) {
+        List<Resource> substances = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            Substance substance = new Substance();
+            substance.setId(Integer.toString(i));
+            substances.add(substance);
+        }
+        return substances;
+    }
+
+    private static Medication medication(int id, String ingredient) {
+        Medication medication = new Medication();
+        medication.setId(Integer.toString(id));
+        if (ingredient != null) {
+            medication.addIngredient().setItem(new Reference(ingredient));
+        }
+        return medication;
+    }
+
+    /**
+     * Accepts transaction bundles, answering with the queued statuses first, recording what arrived and when
+     */
+    private static class StubFhirServer {
+        private static final String CAPABILITY_STATEMENT = "{\"resourceType\":\"CapabilityStatement\","
+                + "\"status\":\"active\",\"date\":\"2018-01-01\",\"kind\":\"instance\",\"fhirVersion\":\"3.0.1\","
+                + "\"format\":[\"json\",\"xml\"]}";
+        private static final String OPERATION_OUTCOME = "{\"resourceType\":\"OperationOutcome\","
+                + "\"issue\":[{\"severity\":\"error\",\"code\":\"exception\"}]}";
+
+        private final FhirContext ctx = FhirContextUtils.createContext();
+        private final HttpServer httpServer;
+
+        final Deque<Integer> statuses = new ConcurrentLinkedDeque<>();
+        volatile long delayMillis;
+        volatile String delayedUrl;
+
+        final List<List<String>> accepted = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> arrivalNanos = Collections.synchronizedList(new ArrayList<>());
+        final Map<String, Set<String>> acceptedBeforeArrival = Collections.synchronizedMap(new HashMap<>());
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        private final AtomicInteger concurrent = new AtomicInteger();
+
+        StubFhirServer() throws IOException {
+            httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            httpServer.setExecutor(Executors.newCachedThreadPool());
+            httpServer.createContext("/fhir", this::handle);
+            httpServer.start();
+        }
+
+        String getUrl() {
+            return "http://localhost:" + httpServer.getAddress().getPort() + "/fhir";
+        }
+
+        void stop() {
+            httpServer.stop(0);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (exchange.getRequestURI().getPath().endsWith("/metadata")) {
+                    respond(exchange, 200, CAPABILITY_STATEMENT);
+                    return;
+                }
+
+                long arrival = System.nanoTime();
+                String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+                Bundle bundle = EncodingEnum.detectEncoding(body).newParser(ctx).parseResource(Bundle.class, body);
+                List<String> urls = new ArrayList<>();
+                for (BundleEntryComponent entry : bundle.getEntry()) {
+                    urls.add(entry.getRequest().getUrl());
+                }
+                synchronized (accepted) {
+                    arrivalNanos.add(arrival);
+                    Set<String> acceptedUrls = new HashSet<>();
+                    accepted.forEach(acceptedUrls::addAll);
+                    urls.forEach(url -> acceptedBeforeArrival.put(url, acceptedUrls));
+                }
+
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                try {
+                    if (delayMillis > 0 && (delayedUrl == null || urls.contains(delayedUrl))) {
+                        Thread.sleep(delayMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+
+                Integer status = statuses.poll();
+                if (status != null) {
+                    respond(exchange, status, OPERATION_OUTCOME);
+                    return;
+                }
+
+                Bundle response = new Bundle();
+                response.setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+                for (int i = 0; i < urls.size(); i++) {
+                    response.addEntry().getResponse().setStatus("200 OK");
+                }
+                accepted.add(urls);
+                respond(exchange, 200, ctx.newJsonParser().encodeResourceToString(response));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
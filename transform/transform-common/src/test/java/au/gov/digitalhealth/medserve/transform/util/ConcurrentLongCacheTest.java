@@ -0,0 +1,150 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ConcurrentLongCacheTest {
+
+    private final ConcurrentLongCache<String> cache = new ConcurrentLongCache<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void computesEachKeyOnce() {
+        AtomicInteger computations = new AtomicInteger();
+
+        assertNull(cache.getIfPresent(21));
+        assertEquals("21", cache.computeIfAbsent(21, key -> {
+            computations.incrementAndGet();
+            return Long.toString(key);
+        }));
+        assertEquals("21", cache.computeIfAbsent(21, key -> {
+            computations.incrementAndGet();
+            return "again";
+        }));
+
+        assertEquals(1, computations.get());
+        assertEquals("21", cache.getIfPresent(21));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void computationMayUseOtherKeys() {
+        assertEquals("21+31", cache.computeIfAbsent(21,
+            key -> key + "+" + cache.computeIfAbsent(31, other -> Long.toString(other))));
+
+        assertEquals("31", cache.getIfPresent(31));
+    }
+
+    @Test(timeout = 10000)
+    public void waitsForValueBeingComputedByAnotherThread() throws Exception {
+        CountDownLatch computing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger computations = new AtomicInteger();
+
+        Future<String> first = executor.submit(() -> cache.computeIfAbsent(21, key -> {
+            computations.incrementAndGet();
+            computing.countDown();
+            await(release);
+            return "first";
+        }));
+        computing.await();
+        Future<String> second = executor.submit(() -> cache.computeIfAbsent(21, key -> {
+            computations.incrementAndGet();
+            return "second";
+        }));
+
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+        assertNull(cache.getIfPresent(21));
+
+        release.countDown();
+        String value = first.get();
+        assertEquals("first", value);
+        assertSame(value, second.get());
+        assertEquals(1, computations.get());
+    }
+
+    @Test(timeout = 10000)
+    public void waitingThreadsGetTheFailure() throws Exception {
+        CountDownLatch computing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> first = executor.submit(() -> cache.computeIfAbsent(21, key -> {
+            computing.countDown();
+            await(release);
+            throw new IllegalArgumentException("failed");
+        }));
+        computing.await();
+        Future<String> second = executor.submit(() -> cache.computeIfAbsent(21, key -> "second"));
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Future<String> result : Arrays.asList(first, second)) {
+            try {
+                result.get();
+                fail("Expected the computation's failure");
+            } catch (ExecutionException e) {
+                assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+            }
+        }
+    }
+
+    @Test
+    public void failsWhenComputationAsksForItsOwnKey() {
+        try {
+            cache.computeIfAbsent(21, key -> cache.computeIfAbsent(21, same -> "recursive"));
+            fail("Expected a computation asking for its own key to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals("retried", cache.computeIfAbsent(21, key -> "retried"));
+    }
+
+    @Test
+    public void retriesComputationAfterFailure() {
+        try {
+            cache.computeIfAbsent(21, key -> {
+                throw new IllegalArgumentException("failed");
+            });
+            fail("Expected the computation's failure");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertNull(cache.getIfPresent(21));
+        assertEquals("retried", cache.computeIfAbsent(21, key -> "retried"));
+        assertEquals("retried", cache.getIfPresent(21));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConcurrentLongSetTest {
+
+    @Test
+    public void addReturnsTrueOnlyForNewValues() {
+        ConcurrentLongSet set = new ConcurrentLongSet(10);
+
+        assertTrue(set.add(21));
+        assertTrue(set.add(1021));
+        assertFalse(set.add(21));
+
+        assertEquals(2, set.size());
+        assertTrue(set.contains(21));
+        assertTrue(set.contains(1021));
+        assertFalse(set.contains(31));
+        assertFalse(set.contains(0));
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentAddReturnsTrueToExactlyOneThread() throws Exception {
+        int threads = 8;
+        int values = 100000;
+        ConcurrentLongSet set = new ConcurrentLongSet(values);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> added = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                added.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (long value = 1; value <= values; value++) {
+                        if (set.add(value * 1000 + 21)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+
+            int total = 0;
+            for (Future<Integer> count : added) {
+                total += count.get();
+            }
+            assertEquals(values, total);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(values, set.size());
+        for (long value = 1; value <= values; value++) {
+            assertTrue(set.contains(value * 1000 + 21));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZero() {
+        new ConcurrentLongSet(10).add(0);
+    }
+
+    @Test
+    public void throwsWhenFull() {
+        ConcurrentLongSet set = new ConcurrentLongSet(8);
+        long value = 1;
+        try {
+            while (true) {
+                set.add(value++);
+            }
+        } catch (IllegalStateException e) {
+            // expected once every slot is used
+        }
+
+        assertEquals(16, set.size());
+        assertFalse(set.add(1));
+    }
+}
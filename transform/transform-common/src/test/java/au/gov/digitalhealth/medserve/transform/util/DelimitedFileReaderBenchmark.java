@@ -0,0 +1,118 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading delimited files the way {@link FileUtils} used to, with {@link Files#lines(Path)} and
+ * {@link String#split(String, int)}, against {@link DelimitedFileReader}. The files are tab delimited like RF2, !
+ * delimited like the PBS extracts and | delimited like RxNorm RRF, which was split with the regular expression "[|]".
+ * <p>
+ * Run with <code>mvn -Pbenchmark test</code> in this module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DelimitedFileReaderBenchmark {
+
+    private static final int ROWS = 200_000;
+
+    @Param({ "TAB", "EXCLAMATION", "PIPE" })
+    private String delimiter;
+
+    private char delimiterChar;
+    private String splitRegex;
+    private Path file;
+
+    @Setup
+    public void writeFile() throws IOException {
+        switch (delimiter) {
+            case "TAB":
+                delimiterChar = '\t';
+                splitRegex = "\t";
+                break;
+            case "EXCLAMATION":
+                delimiterChar = '!';
+                splitRegex = "!";
+                break;
+            case "PIPE":
+                delimiterChar = '|';
+                splitRegex = "[|]";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown delimiter " + delimiter);
+        }
+
+        // rows shaped like an RF2 relationship file
+        file = Files.createTempFile("delimited", ".txt");
+        Random random = new Random(1);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(String.join(Character.toString(delimiterChar), "id", "effectiveTime", "active", "moduleId",
+                "sourceId", "destinationId", "relationshipGroup", "typeId", "characteristicTypeId", "modifierId"));
+            writer.newLine();
+            for (int i = 0; i < ROWS; i++) {
+                Object[] fields = { 1000000 + i + "021", 20180000 + random.nextInt(1231), random.nextInt(2),
+                        "900062011000036108", Math.abs(random.nextLong() % 1000000000000000L),
+                        Math.abs(random.nextLong() % 1000000000000000L), random.nextInt(5), "116680003",
+                        "900000000000011006", "900000000000451002" };
+                for (int f = 0; f < fields.length; f++) {
+                    if (f > 0) {
+                        writer.write(delimiterChar);
+                    }
+                    writer.write(fields[f].toString());
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    @TearDown
+    public void deleteFile() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public void splitLines(Blackhole blackhole) throws IOException {
+        try (Stream<String> lines = Files.lines(file)) {
+            lines.skip(1).map(line -> line.split(splitRegex, -1)).forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void delimitedFileReaderArrays(Blackhole blackhole) throws IOException {
+        new DelimitedFileReader(delimiterChar, true).read(file, row -> blackhole.consume(row.toArray()));
+    }
+
+    @Benchmark
+    public void delimitedFileReaderRows(Blackhole blackhole) throws IOException {
+        new DelimitedFileReader(delimiterChar, true).read(file, row -> {
+            blackhole.consume(row.getLong(0));
+            blackhole.consume(row.getInt(1));
+            blackhole.consume(row.equals(2, "1"));
+            blackhole.consume(row.getLong(4));
+        });
+    }
+}
@@ -0,0 +1,91 @@
+package au.gov.digitalhealth.medserve.transform.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongObjectMapTest {
+
+    @Test
+    public void putAndGet() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.put(21, "a"));
+        assertNull(map.put(1021, "b"));
+        assertEquals("a", map.put(21, "c"));
+
+        assertEquals(2, map.size());
+        assertEquals("c", map.get(21));
+        assertEquals("b", map.get(1021));
+        assertNull(map.get(31));
+        assertFalse(map.containsKey(31));
+        assertFalse(map.containsKey(0));
+    }
+
+    @Test
+    public void keysGetDenseIndexesInInsertionOrder() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        map.put(300, "c");
+        map.put(100, "a");
+        map.put(200, "b");
+        map.put(100, "a2");
+
+        assertEquals(0, map.indexOf(300));
+        assertEquals(1, map.indexOf(100));
+        assertEquals(2, map.indexOf(200));
+        assertEquals(LongObjectMap.NOT_FOUND, map.indexOf(400));
+        assertEquals(100, map.keyAt(1));
+        assertEquals("a2", map.valueAt(1));
+        assertEquals(Arrays.asList("c", "a2", "b"), map.values());
+    }
+
+    @Test
+    public void growsAndRehashesPastExpectedSize() {
+        LongObjectMap<Long> map = new LongObjectMap<>(2);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextLong();
+            expected.put(key, (long) i);
+            map.put(key, (long) i);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        for (int index = 0; index < map.size(); index++) {
+            assertEquals(index, map.indexOf(map.keyAt(index)));
+        }
+    }
+
+    @Test
+    public void keysCollidingInTheTableAreKeptApart() {
+        // multiples of a large power of two would all land in slot 0 without the hash spreading them
+        LongObjectMap<Integer> map = new LongObjectMap<>(4);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 1024L * 1024L, i);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(i * 1024L * 1024L));
+        }
+        assertNull(map.get(1000 * 1024L * 1024L));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexesPastSize() {
+        LongObjectMap<String> map = new LongObjectMap<>(16);
+        map.put(21, "a");
+        map.valueAt(1);
+    }
+}